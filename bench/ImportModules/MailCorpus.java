@@ -0,0 +1,205 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * Generator of synthetic mail corpus for benchmarks.<br>
+ * Messages are generated with fixed seed, serialized to raw bytes
+ * and parsed back, like messages downloaded from server.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class MailCorpus {
+
+    /**
+     * Session for message parsing.
+     */
+    public static final Session SESSION = Session.getInstance(new Properties());
+
+    /**
+     * Cyrillic words which exist in all tested charsets (KOI8-R has no Ukrainian letters).
+     */
+    private static final String[] CYRILLIC_WORDS = {"новини", "агентство", "заява", "уряду", "бюджету", "ринок",
+        "заходу", "прес-служба", "голова", "ради", "сказав", "року", "мережа", "банку", "кордону", "продажу"};
+
+    /**
+     * ASCII words for 7bit messages.
+     */
+    private static final String[] ASCII_WORDS = {"news", "agency", "statement", "government", "company", "market",
+        "event", "press", "office", "chairman", "council", "reports", "year", "network", "bank", "border"};
+
+    /**
+     * Private constructor: utility class.
+     */
+    private MailCorpus() {
+    }
+
+    /**
+     * Build raw message.
+     * @param structure message structure: plain, html, alternative or mixed;
+     * @param encoding transfer encoding of text parts: 7bit (ASCII text), quoted-printable or base64;
+     * @param charset charset of text parts;
+     * @param size approximate count of chars in text;
+     * @param seed random seed;
+     * @return raw message bytes;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static byte[] build(String structure, String encoding, String charset, int size, long seed) throws MessagingException, IOException {
+        Random random = new Random(seed);
+        String text = text(random, size, "7bit".equals(encoding));
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress("press@agency.example", "Прес-служба", "UTF-8"));
+        message.setSubject("Прес-реліз №" + random.nextInt(10000), "UTF-8");
+        message.setHeader("Message-ID", "<" + seed + "." + random.nextLong() + "@agency.example>");
+        switch (structure) {
+            case "plain":
+                message.setText(text, charset);
+                message.setHeader("Content-Transfer-Encoding", encoding);
+                break;
+            case "html":
+                message.setText(html(text), charset, "html");
+                message.setHeader("Content-Transfer-Encoding", encoding);
+                break;
+            case "alternative":
+                MimeMultipart alternative = new MimeMultipart("alternative");
+                alternative.addBodyPart(textPart(text, charset, "plain", encoding));
+                alternative.addBodyPart(textPart(html(text), charset, "html", encoding));
+                message.setContent(alternative);
+                break;
+            case "mixed":
+                MimeMultipart mixed = new MimeMultipart("mixed");
+                mixed.addBodyPart(textPart(text, charset, "plain", encoding));
+                byte[] attachment = new byte[size * 4];
+                random.nextBytes(attachment);
+                MimeBodyPart attachPart = new MimeBodyPart();
+                attachPart.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/pdf")));
+                attachPart.setFileName("release.pdf");
+                attachPart.setDisposition(MimeBodyPart.ATTACHMENT);
+                mixed.addBodyPart(attachPart);
+                message.setContent(mixed);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown structure: " + structure);
+        }
+        message.saveChanges();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(size * 2);
+        message.writeTo(output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Build several different raw messages of same kind.
+     * @param count count of messages;
+     * @param structure message structure;
+     * @param encoding transfer encoding of text parts;
+     * @param charset charset of text parts;
+     * @param size approximate count of chars in text;
+     * @return list of raw messages;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static List<byte[]> buildAll(int count, String structure, String encoding, String charset, int size) throws MessagingException, IOException {
+        List<byte[]> corpus = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            corpus.add(build(structure, encoding, charset, size, index));
+        }
+        return corpus;
+    }
+
+    /**
+     * Parse raw message.
+     * @param raw raw message bytes;
+     * @return parsed message;
+     * @throws MessagingException
+     */
+    public static MimeMessage parse(byte[] raw) throws MessagingException {
+        return new MimeMessage(SESSION, new ByteArrayInputStream(raw));
+    }
+
+    /**
+     * Build text part of multipart message.
+     * @param text part text;
+     * @param charset part charset;
+     * @param subtype text subtype;
+     * @param encoding transfer encoding;
+     * @return new part;
+     * @throws MessagingException
+     */
+    private static MimeBodyPart textPart(String text, String charset, String subtype, String encoding) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, charset, subtype);
+        part.setHeader("Content-Transfer-Encoding", encoding);
+        return part;
+    }
+
+    /**
+     * Generate text of paragraphs with random words.
+     * @param random random source;
+     * @param size approximate count of chars;
+     * @param ascii use only ASCII words;
+     * @return generated text;
+     */
+    private static String text(Random random, int size, boolean ascii) {
+        String[] words = ascii ? ASCII_WORDS : CYRILLIC_WORDS;
+        StringBuilder text = new StringBuilder(size + 32);
+        int sentence = 0;
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]);
+            sentence++;
+            if (sentence % 12 == 0) {
+                text.append(sentence % 60 == 0 ? ".\r\n\r\n" : ". ");
+            } else {
+                text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Wrap text paragraphs into html markup.
+     * @param text plain text;
+     * @return html document;
+     */
+    private static String html(String text) {
+        StringBuilder html = new StringBuilder(text.length() * 2);
+        html.append("<!DOCTYPE html><html><head><style>p {margin: 0}</style></head><body><div class=\"release\">");
+        for (String currPara: text.split("\r\n\r\n")) {
+            html.append("<p><span style=\"font-family: Arial\">").append(currPara.replace(". ", ".&nbsp;<br>")).append("</span></p>\r\n");
+        }
+        html.append("</div></body></html>");
+        return html.toString();
+    }
+}
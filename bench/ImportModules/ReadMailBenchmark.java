@@ -0,0 +1,137 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of mail reading path (<code>Mail.readMail()</code>):
+ * raw message parse, MIME walk, body decode and html conversion.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadMailBenchmark {
+
+    /**
+     * Count of different messages in corpus.
+     */
+    private static final int CORPUS_SIZE = 32;
+
+    /**
+     * Message structure.
+     */
+    @Param({"plain", "html", "alternative", "mixed"})
+    public String structure;
+
+    /**
+     * Transfer encoding of text parts.
+     */
+    @Param({"7bit", "quoted-printable", "base64"})
+    public String encoding;
+
+    /**
+     * Charset of text parts.
+     */
+    @Param({"UTF-8", "KOI8-R", "windows-1251"})
+    public String charset;
+
+    /**
+     * Html conversion mode.
+     */
+    @Param({"STREAM"})
+    public String htmlMode;
+
+    /**
+     * Approximate count of chars in message text.
+     */
+    @Param({"8000"})
+    public int size;
+
+    /**
+     * Raw messages.
+     */
+    private List<byte[]> corpus;
+
+    /**
+     * Reader under test.
+     */
+    private MailReader reader;
+
+    /**
+     * Sender address.
+     */
+    private InternetAddress sender;
+
+    /**
+     * Whitelist record of sender.
+     */
+    private Mail.WhitelistRecord record;
+
+    /**
+     * Index of next message in corpus.
+     */
+    private int next = 0;
+
+    /**
+     * Generate corpus and reader.
+     * @throws Exception
+     */
+    @Setup
+    public void setup() throws Exception {
+        corpus = MailCorpus.buildAll(CORPUS_SIZE, structure, encoding, charset, size);
+        reader = new MailReader("bench", 1048576, StandardCharsets.UTF_8, Mail.HTML_MODE.valueOf(htmlMode), "Система.Тест", new String[] {"тест"}, "UKN", null, null);
+        sender = new InternetAddress("press@agency.example", "Прес-служба", "UTF-8");
+        record = new Mail.WhitelistRecord();
+        record.ADDRESS = sender.getAddress();
+    }
+
+    /**
+     * Parse raw message and convert it to system message.
+     * @return system message;
+     * @throws Exception
+     */
+    @Benchmark
+    public MessageClasses.Message readMail() throws Exception {
+        byte[] raw = corpus.get(next);
+        next = (next + 1) % CORPUS_SIZE;
+        MimeMessage message = MailCorpus.parse(raw);
+        return reader.read(sender, message, record);
+    }
+}
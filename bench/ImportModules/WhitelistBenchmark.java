@@ -0,0 +1,160 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of whitelist sender lookup.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistBenchmark {
+
+    /**
+     * Count of prepared lookup addresses (power of two).
+     */
+    private static final int LOOKUP_COUNT = 1024;
+
+    /**
+     * Count of whitelist entries.
+     */
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    /**
+     * Kind of looked up addresses: exact entry, domain rule or unknown sender.
+     */
+    @Param({"exact", "domain", "miss"})
+    public String lookup;
+
+    /**
+     * Whitelist format.
+     */
+    @Param({"NORMAL", "EXTENDED"})
+    public String format;
+
+    /**
+     * Whitelist under test.
+     */
+    private Whitelist whitelist;
+
+    /**
+     * Sender addresses for lookup.
+     */
+    private String[] addresses;
+
+    /**
+     * Index of next address.
+     */
+    private int next = 0;
+
+    /**
+     * Generate whitelist and lookup addresses.
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Mail.WHITELIST_FORMAT whitelistFormat = Mail.WHITELIST_FORMAT.valueOf(format);
+        whitelist = Whitelist.parse(lines(entries, whitelistFormat), whitelistFormat);
+        int domainRules = domainRules(entries);
+
+        addresses = new String[LOOKUP_COUNT];
+        for (int index = 0; index < LOOKUP_COUNT; index++) {
+            int entry = domainRules + random.nextInt(Math.max(1, entries - domainRules));
+            switch (lookup) {
+                case "exact":
+                    addresses[index] = "editor" + entry + "@agency" + (entry % 97) + ".example";
+                    break;
+                case "domain":
+                    addresses[index] = "desk" + index + "@region" + random.nextInt(domainRules) + ".example";
+                    break;
+                default:
+                    addresses[index] = "spam" + random.nextInt() + "@mailer" + index + ".example";
+            }
+        }
+    }
+
+    /**
+     * Find whitelist record of sender.
+     * @return found record or null;
+     */
+    @Benchmark
+    public Mail.WhitelistRecord find() {
+        String address = addresses[next];
+        next = (next + 1) & (LOOKUP_COUNT - 1);
+        return whitelist.find(address);
+    }
+
+    /**
+     * Generate whitelist file lines: first entries are domain rules, 
+     * others are exact addresses.
+     * @param entries count of whitelist entries;
+     * @param whitelistFormat whitelist format;
+     * @return whitelist lines;
+     */
+    static List<String> lines(int entries, Mail.WHITELIST_FORMAT whitelistFormat) {
+        List<String> lines = new ArrayList<>(entries);
+        int domainRules = domainRules(entries);
+        for (int index = 0; index < entries; index++) {
+            String address = index < domainRules ? "*@region" + index + ".example" : "Editor" + index + "@Agency" + (index % 97) + ".example";
+            lines.add(whitelistFormat == Mail.WHITELIST_FORMAT.EXTENDED ? line(address, index) : address);
+        }
+        return lines;
+    }
+
+    /**
+     * Get count of domain rules in generated whitelist.
+     * @param entries count of whitelist entries;
+     * @return count of domain rules;
+     */
+    private static int domainRules(int entries) {
+        return Math.max(1, entries / 100);
+    }
+
+    /**
+     * Build EXTENDED whitelist line.
+     * @param address sender address;
+     * @param index entry index;
+     * @return CSV line;
+     */
+    static String line(String address, int index) {
+        return address + ",{Прес-служба агентства " + index + "},[Система.Тест,Новини.Регіони]";
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of whole whitelist file parse (reload after change).
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistParseBenchmark {
+
+    /**
+     * Count of whitelist entries.
+     */
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    /**
+     * Whitelist format.
+     */
+    @Param({"NORMAL", "EXTENDED"})
+    public String format;
+
+    /**
+     * Whitelist file lines.
+     */
+    private List<String> lines;
+
+    /**
+     * Whitelist format value.
+     */
+    private Mail.WHITELIST_FORMAT whitelistFormat;
+
+    /**
+     * Generate whitelist lines.
+     */
+    @Setup
+    public void setup() {
+        whitelistFormat = Mail.WHITELIST_FORMAT.valueOf(format);
+        lines = WhitelistBenchmark.lines(entries, whitelistFormat);
+    }
+
+    /**
+     * Parse whole whitelist file.
+     * @return new whitelist;
+     */
+    @Benchmark
+    public Whitelist parse() {
+        return Whitelist.parse(lines, whitelistFormat);
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of EXTENDED whitelist record CSV parse.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistRecordBenchmark {
+
+    /**
+     * Count of prepared lines (power of two).
+     */
+    private static final int LINE_COUNT = 256;
+
+    /**
+     * Whitelist lines.
+     */
+    private String[] lines;
+
+    /**
+     * Index of next line.
+     */
+    private int next = 0;
+
+    /**
+     * Generate whitelist lines.
+     */
+    @Setup
+    public void setup() {
+        lines = new String[LINE_COUNT];
+        for (int index = 0; index < LINE_COUNT; index++) {
+            lines[index] = WhitelistBenchmark.line("editor" + index + "@agency" + (index % 97) + ".example", index);
+        }
+    }
+
+    /**
+     * Parse single record.
+     * @return parsed record;
+     */
+    @Benchmark
+    public Mail.WhitelistRecord parseRecord() {
+        String line = lines[next];
+        next = (next + 1) & (LINE_COUNT - 1);
+        return new Mail.WhitelistRecord(line);
+    }
+}
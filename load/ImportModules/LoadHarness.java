@@ -0,0 +1,603 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * End-to-end load test of mail import scheme.<br>
+ * Starts embedded POP3 and SMTP servers (GreenMail), seeds mailbox with
+ * synthetic messages of mixed structure and size, runs <code>Mail.doImport()</code>
+ * with stub server wrapper until mailbox is drained and waits for all reports.<br>
+ * Throughput, heap growth and report delivery latency are compared with
+ * stored baseline; run fails if any result regresses past tolerance,
+ * if scheme logs errors or if some messages or reports are missing.
+ * If baseline file doesn't exist it's created from current results
+ * of successful run.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class LoadHarness {
+
+    /**
+     * Sender address of seeded messages (also recipient of reports).
+     */
+    private static final String SENDER = "press@agency.example";
+
+    /**
+     * Domain of report recipient.
+     */
+    private static final String REPORT_DOMAIN = "agency.example";
+
+    /**
+     * Interval of report arrival check (in milliseconds).
+     */
+    private static final long SAMPLE_INTERVAL = 100;
+
+    /**
+     * Max count of import passes for one backlog.
+     */
+    private static final int MAX_PASSES = 50;
+
+    /**
+     * Count of messages accepted by stub server.
+     */
+    private static final AtomicInteger added = new AtomicInteger();
+
+    /**
+     * Release times of messages by index (in nanoseconds).
+     */
+    private static volatile long[] releaseTimes;
+
+    /**
+     * Count of errors logged by import scheme.
+     */
+    private static final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * Private constructor: utility class.
+     */
+    private LoadHarness() {
+    }
+
+    /**
+     * Run load test.<br>
+     * Arguments: <code>[-backlogs 1000,10000,100000] [-baseline load/baseline.properties]
+     * [-tolerance 0.2] [-workers N] [-pop3 3110] [-smtp 3025] [-update]</code>.
+     * @param args command line arguments;
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        String backlogs = "1000,10000,100000";
+        File baselineFile = new File("load/baseline.properties");
+        double tolerance = 0.2;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int pop3Port = 3110;
+        int smtpPort = 3025;
+        boolean update = false;
+        for (int index = 0; index < args.length; index++) {
+            switch (args[index]) {
+                case "-backlogs":
+                    backlogs = args[++index];
+                    break;
+                case "-baseline":
+                    baselineFile = new File(args[++index]);
+                    break;
+                case "-tolerance":
+                    tolerance = Double.parseDouble(args[++index]);
+                    break;
+                case "-workers":
+                    workers = Integer.parseInt(args[++index]);
+                    break;
+                case "-pop3":
+                    pop3Port = Integer.parseInt(args[++index]);
+                    break;
+                case "-smtp":
+                    smtpPort = Integer.parseInt(args[++index]);
+                    break;
+                case "-update":
+                    update = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[index]);
+            }
+        }
+        installWrapper();
+
+        Properties baseline = new Properties();
+        boolean hasBaseline = baselineFile.isFile();
+        if (hasBaseline) {
+            try (InputStream baselineStream = new FileInputStream(baselineFile)) {
+                baseline.load(baselineStream);
+            }
+        }
+        Properties results = new Properties();
+        boolean failed = false;
+        boolean regressed = false;
+        for (String currBacklog: backlogs.split(",")) {
+            int count = Integer.parseInt(currBacklog.trim());
+            Result currResult = run(count, workers, pop3Port, smtpPort);
+            System.out.println(currResult);
+            currResult.store(results);
+            failed |= currResult.isFailed();
+            if (hasBaseline && !update) {
+                regressed |= currResult.compare(baseline, tolerance);
+            }
+        }
+
+        if (failed) {
+            System.out.println("Run failed, baseline isn't changed");
+        } else if (!hasBaseline || update) {
+            baseline.putAll(results);
+            try (OutputStream baselineStream = new FileOutputStream(baselineFile)) {
+                baseline.store(baselineStream, "ImportMail load baseline");
+            }
+            System.out.println("Baseline written to " + baselineFile.getPath());
+        }
+        System.exit(failed || regressed ? 1 : 0);
+    }
+
+    /**
+     * Run single backlog.
+     * @param count count of messages in mailbox;
+     * @param workers count of parse workers;
+     * @param pop3Port POP3 server port;
+     * @param smtpPort SMTP server port;
+     * @return run result;
+     * @throws Exception
+     */
+    private static Result run(int count, int workers, int pop3Port, int smtpPort) throws Exception {
+        GreenMail server = new GreenMail(new ServerSetup[] {
+            new ServerSetup(pop3Port, "127.0.0.1", ServerSetup.PROTOCOL_POP3),
+            new ServerSetup(smtpPort, "127.0.0.1", ServerSetup.PROTOCOL_SMTP)});
+        server.start();
+        Mail scheme = null;
+        try {
+            GreenMailUser user = server.setUser("import@localhost", "import", "secret");
+            Random random = new Random(count);
+            for (int index = 0; index < count; index++) {
+                user.deliver(MailCorpus.parse(seedMessage(random, index)));
+            }
+
+            File workDir = Files.createTempDirectory("importmail-load").toFile();
+            IOControl.IMPORT_DIR = workDir.getPath();
+            added.set(0);
+            errors.set(0);
+            releaseTimes = new long[count];
+            scheme = new Mail(schemeConfig(count, workers, pop3Port, smtpPort));
+
+            long heapBase = resetHeap();
+            ReportSampler sampler = new ReportSampler(server, count);
+            sampler.start();
+            long start = System.nanoTime();
+            int passes = 0;
+            int lastAdded = -1;
+            while (added.get() < count && added.get() != lastAdded && passes < MAX_PASSES) {
+                lastAdded = added.get();
+                scheme.doImport();
+                passes++;
+            }
+            long importNanos = System.nanoTime() - start;
+            sampler.awaitReports(added.get(), 600000);
+            long heapPeak = peakHeap() - heapBase;
+
+            Result result = new Result(count);
+            result.released = added.get();
+            result.errors = errors.get();
+            result.throughput = result.released * 60e9 / Math.max(importNanos, 1);
+            result.heapMb = heapPeak / 1048576.0;
+            long[] latencies = sampler.latencies();
+            result.reports = latencies.length;
+            result.reportP50 = percentile(latencies, 0.5);
+            result.reportP95 = percentile(latencies, 0.95);
+            result.reportMax = latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+            sampler.interrupt();
+            return result;
+        } finally {
+            if (scheme != null) {
+                scheme.shutdown();
+            }
+            server.stop();
+        }
+    }
+
+    /**
+     * Build config of tested scheme.
+     * @param count count of messages in mailbox;
+     * @param workers count of parse workers;
+     * @param pop3Port POP3 server port;
+     * @param smtpPort SMTP server port;
+     * @return scheme config;
+     */
+    private static Properties schemeConfig(int count, int workers, int pop3Port, int smtpPort) {
+        Properties config = new Properties();
+        config.setProperty("import_type", "MAIL");
+        config.setProperty("import_name", "load" + count);
+        config.setProperty("import_print", "load" + count);
+        config.setProperty("import_timeout", "1");
+        config.setProperty("mail_pop3_address", "127.0.0.1");
+        config.setProperty("mail_pop3_port", String.valueOf(pop3Port));
+        config.setProperty("mail_pop3_login", "import");
+        config.setProperty("mail_pop3_pass", "secret");
+        config.setProperty("mail_pop3_security", "NONE");
+        config.setProperty("mail_read_from", SENDER);
+        config.setProperty("mail_read_format", "1");
+        config.setProperty("mail_read_fallback_dir", "Система.Тест");
+        config.setProperty("mail_send_report", "1");
+        config.setProperty("mail_smtp_address", "127.0.0.1");
+        config.setProperty("mail_smtp_con_port", String.valueOf(smtpPort));
+        config.setProperty("mail_from", "ribbon@localhost");
+        config.setProperty("mail_smtp_threads", "2");
+        config.setProperty("mail_pipeline_workers", String.valueOf(workers));
+        config.setProperty("mail_poll_jitter", "0");
+        return config;
+    }
+
+    /**
+     * Build seeded message: mostly plain and alternative text of 1-13 KB,
+     * some html letters and one of ten with binary attachment.
+     * @param random random source;
+     * @param index message index;
+     * @return raw message bytes;
+     * @throws Exception
+     */
+    private static byte[] seedMessage(Random random, int index) throws Exception {
+        int size = 1000 + random.nextInt(12000);
+        switch (index % 10) {
+            case 0:
+            case 1:
+            case 2:
+            case 3:
+                return MailCorpus.build("plain", "quoted-printable", "UTF-8", size, index);
+            case 4:
+            case 5:
+            case 6:
+                return MailCorpus.build("alternative", "base64", "UTF-8", size, index);
+            case 7:
+                return MailCorpus.build("html", "quoted-printable", "windows-1251", size, index);
+            case 8:
+                return MailCorpus.build("plain", "7bit", "US-ASCII", size, index);
+            default:
+                return MailCorpus.build("mixed", "base64", "KOI8-R", size, index);
+        }
+    }
+
+    /**
+     * Install stub server wrapper: messages are counted and numbered,
+     * errors are printed.<br>
+     * Wrapper interface is declared by libRibbonIO, so it's implemented
+     * with dynamic proxy by method names.
+     * @throws ReflectiveOperationException if wrapper field is not accessible;
+     */
+    private static void installWrapper() throws ReflectiveOperationException {
+        java.lang.reflect.Field wrapperField = IOControl.class.getField("serverWrapper");
+        Class<?> wrapperType = wrapperField.getType();
+        Object wrapper = Proxy.newProxyInstance(LoadHarness.class.getClassLoader(), new Class<?>[] {wrapperType}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "addMessage":
+                        MessageClasses.Message message = (MessageClasses.Message) args[2];
+                        int index = added.getAndIncrement();
+                        message.INDEX = String.valueOf(index);
+                        long[] times = releaseTimes;
+                        if (index < times.length) {
+                            times[index] = System.nanoTime();
+                        }
+                        break;
+                    case "log":
+                        if (((Number) args[1]).intValue() <= 1) {
+                            errors.incrementAndGet();
+                            System.err.println(args[0] + ": " + args[2]);
+                        }
+                        break;
+                    case "postException":
+                        errors.incrementAndGet();
+                        System.err.println(args[0]);
+                        ((Throwable) args[1]).printStackTrace();
+                        break;
+                    case "enableDirtyState":
+                        errors.incrementAndGet();
+                        System.err.println("dirty state: " + Arrays.toString(args));
+                        break;
+                    default:
+                        break;
+                }
+                Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                } else if (returnType.isPrimitive() && returnType != void.class) {
+                    return 0;
+                }
+                return null;
+            }
+        });
+        wrapperField.set(null, wrapper);
+    }
+
+    /**
+     * Collect garbage and reset peak usage of heap pools.
+     * @return used heap after collection (in bytes);
+     */
+    private static long resetHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean currPool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (currPool.getType() == MemoryType.HEAP) {
+                currPool.resetPeakUsage();
+                used += currPool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Get sum of peak usage of heap pools.
+     * @return peak heap (in bytes);
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean currPool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (currPool.getType() == MemoryType.HEAP) {
+                peak += currPool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Get percentile of sorted values.
+     * @param sorted sorted values;
+     * @param rank percentile rank (0..1);
+     * @return percentile value or 0 for empty array;
+     */
+    private static long percentile(long[] sorted, double rank) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * rank) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Thread which watches SMTP server for reports and measures
+     * delay between message release and report arrival.
+     */
+    private static class ReportSampler extends Thread {
+
+        /**
+         * Embedded mail server.
+         */
+        private final GreenMail server;
+
+        /**
+         * Latencies of arrived reports (in milliseconds).
+         */
+        private final long[] latencies;
+
+        /**
+         * Count of arrived reports.
+         */
+        private volatile int arrived = 0;
+
+        /**
+         * Default constructor.
+         * @param givenServer embedded mail server;
+         * @param count max count of reports;
+         */
+        ReportSampler(GreenMail givenServer, int count) {
+            super("load-report-sampler");
+            server = givenServer;
+            latencies = new long[count];
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    MimeMessage[] reports = server.getReceivedMessagesForDomain(REPORT_DOMAIN);
+                    long now = System.nanoTime();
+                    int next = arrived;
+                    for (int index = next; index < reports.length && next < latencies.length; index++) {
+                        String subject = reports[index].getSubject();
+                        int numberStart = subject == null ? -1 : subject.indexOf('№');
+                        if (numberStart >= 0) {
+                            int numberEnd = subject.indexOf(' ', numberStart);
+                            int messageIndex = Integer.parseInt(subject.substring(numberStart + 1, numberEnd < 0 ? subject.length() : numberEnd));
+                            latencies[next++] = (now - releaseTimes[messageIndex]) / 1000000;
+                        }
+                    }
+                    arrived = next;
+                    Thread.sleep(SAMPLE_INTERVAL);
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Wait until all reports arrive.
+         * @param expected count of expected reports;
+         * @param timeout max wait time (in milliseconds);
+         * @throws InterruptedException
+         */
+        void awaitReports(int expected, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (arrived < expected && isAlive() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(SAMPLE_INTERVAL);
+            }
+        }
+
+        /**
+         * Get sorted latencies of arrived reports.
+         * @return latencies (in milliseconds);
+         */
+        long[] latencies() {
+            long[] result = Arrays.copyOf(latencies, arrived);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * Result of single backlog run.
+     */
+    private static class Result {
+
+        /**
+         * Count of seeded messages.
+         */
+        private final int backlog;
+
+        /**
+         * Count of released messages.
+         */
+        private int released;
+
+        /**
+         * Count of logged errors.
+         */
+        private int errors;
+
+        /**
+         * Import throughput (messages per minute).
+         */
+        private double throughput;
+
+        /**
+         * Peak heap growth during import (in megabytes).
+         */
+        private double heapMb;
+
+        /**
+         * Count of arrived reports.
+         */
+        private int reports;
+
+        /**
+         * Median report latency (in milliseconds).
+         */
+        private long reportP50;
+
+        /**
+         * 95th percentile of report latency (in milliseconds).
+         */
+        private long reportP95;
+
+        /**
+         * Max report latency (in milliseconds).
+         */
+        private long reportMax;
+
+        /**
+         * Default constructor.
+         * @param givenBacklog count of seeded messages;
+         */
+        Result(int givenBacklog) {
+            backlog = givenBacklog;
+        }
+
+        /**
+         * Save result to baseline properties.
+         * @param target baseline properties;
+         */
+        void store(Properties target) {
+            target.setProperty(backlog + ".throughput", String.format("%.0f", throughput));
+            target.setProperty(backlog + ".heap_mb", String.format("%.1f", heapMb));
+            target.setProperty(backlog + ".report_p95_ms", String.valueOf(reportP95));
+        }
+
+        /**
+         * Check if run is incomplete or scheme logged errors.
+         * @return true if run failed;
+         */
+        boolean isFailed() {
+            if (errors > 0 || released < backlog || reports < released) {
+                System.out.println("FAILED " + backlog + ": released " + released + ", reports " + reports + ", errors " + errors);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Compare result with baseline and print regressions.
+         * @param baseline baseline properties;
+         * @param tolerance allowed relative regression;
+         * @return true if result regressed;
+         */
+        boolean compare(Properties baseline, double tolerance) {
+            boolean regressed = check(baseline, backlog + ".throughput", throughput, tolerance, false);
+            regressed |= check(baseline, backlog + ".heap_mb", heapMb, tolerance, true);
+            regressed |= check(baseline, backlog + ".report_p95_ms", reportP95, tolerance, true);
+            return regressed;
+        }
+
+        /**
+         * Check single value against baseline.
+         * @param baseline baseline properties;
+         * @param key baseline key;
+         * @param value current value;
+         * @param tolerance allowed relative regression;
+         * @param lowerIsBetter direction of metric;
+         * @return true if value regressed;
+         */
+        private static boolean check(Properties baseline, String key, double value, double tolerance, boolean lowerIsBetter) {
+            String stored = baseline.getProperty(key);
+            if (stored == null) {
+                return false;
+            }
+            double reference = Double.parseDouble(stored);
+            boolean regressed = lowerIsBetter ? value > reference * (1 + tolerance) : value < reference * (1 - tolerance);
+            if (regressed) {
+                System.out.println("REGRESSION " + key + ": " + String.format("%.1f", value) + " (baseline " + stored + ")");
+            }
+            return regressed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("backlog %d: released %d, errors %d, %.0f msg/min, heap +%.1f MB, reports %d (p50 %d ms, p95 %d ms, max %d ms)",
+                    backlog, released, errors, throughput, heapMb, reports, reportP50, reportP95, reportMax);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Resumable position of archive import.<br>
+ * For each mbox file byte offset of next message is kept, for each
+ * Maildir directory name of last released file. Checkpoint is saved
+ * through temporary file, so it's never left half-written.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ArchiveCheckpoint {
+
+    /**
+     * Checkpoint file (null for memory-only checkpoint).
+     */
+    private final File checkpointFile;
+
+    /**
+     * Positions by source key.
+     */
+    private final Properties positions = new Properties();
+
+    /**
+     * Positions were changed since last save.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Default constructor.
+     * @param givenFile checkpoint file (will be created on save, null for memory-only);
+     * @throws IOException if existing file can't be read;
+     */
+    public ArchiveCheckpoint(File givenFile) throws IOException {
+        checkpointFile = givenFile;
+        if (checkpointFile != null && checkpointFile.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.UTF_8)) {
+                positions.load(reader);
+            }
+        }
+    }
+
+    /**
+     * Get offset of next message in mbox file.
+     * @param mbox mbox file;
+     * @return byte offset (0 if file wasn't imported);
+     */
+    public synchronized long getOffset(File mbox) {
+        try {
+            return Long.parseLong(positions.getProperty("mbox:" + mbox.getAbsolutePath(), "0"));
+        } catch (NumberFormatException nfex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Set offset of next message in mbox file.
+     * @param mbox mbox file;
+     * @param offset byte offset;
+     */
+    public synchronized void setOffset(File mbox, long offset) {
+        positions.setProperty("mbox:" + mbox.getAbsolutePath(), String.valueOf(offset));
+        dirty = true;
+    }
+
+    /**
+     * Get name of last released file in Maildir directory.
+     * @param dir Maildir <code>cur</code> or <code>new</code> directory;
+     * @return file name or null if directory wasn't imported;
+     */
+    public synchronized String getLastName(File dir) {
+        return positions.getProperty("maildir:" + dir.getAbsolutePath());
+    }
+
+    /**
+     * Set name of last released file in Maildir directory.
+     * @param dir Maildir <code>cur</code> or <code>new</code> directory;
+     * @param name file name;
+     */
+    public synchronized void setLastName(File dir, String name) {
+        positions.setProperty("maildir:" + dir.getAbsolutePath(), name);
+        dirty = true;
+    }
+
+    /**
+     * Save checkpoint to disk if it was changed.
+     * @throws IOException if file can't be written;
+     */
+    public synchronized void save() throws IOException {
+        if (checkpointFile == null || !dirty) {
+            return;
+        }
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream tempStream = new FileOutputStream(tempFile)) {
+            Writer writer = new OutputStreamWriter(tempStream, StandardCharsets.UTF_8);
+            positions.store(writer, "ImportMail archive checkpoint");
+            writer.flush();
+            tempStream.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+}
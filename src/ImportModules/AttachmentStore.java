@@ -0,0 +1,289 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Content-addressed store of mail attachments.<br>
+ * Attachment is streamed to temporary file through fixed buffer while
+ * SHA-256 hash is computed, then moved to <code>[dir]/[xx]/[hash]</code>.
+ * Repeated attachments are stored once. Size limits are checked by
+ * declared part size before reading and by counted bytes while streaming.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class AttachmentStore {
+
+    /**
+     * Size of copy buffer.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Hex digits for file names.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Root directory of store.
+     */
+    private final File storeDir;
+
+    /**
+     * Directory for partially written files.
+     */
+    private final File tempDir;
+
+    /**
+     * Max size of single attachment (in bytes).
+     */
+    private final long maxAttachment;
+
+    /**
+     * Max size of all attachments of one message (in bytes).
+     */
+    private final long maxMessage;
+
+    /**
+     * Copy buffers of parse threads.
+     */
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Default constructor.<br>
+     * Store directory may be shared by several schemes, so each scheme 
+     * writes partial files to own temporary directory and cleans only it.
+     * @param givenDir root directory of store (will be created if missing);
+     * @param owner name of scheme which uses store (print of scheme);
+     * @param givenMaxAttachment max size of single attachment (in bytes);
+     * @param givenMaxMessage max size of all attachments of one message (in bytes);
+     * @throws IOException if directory can't be created;
+     */
+    public AttachmentStore(File givenDir, String owner, long givenMaxAttachment, long givenMaxMessage) throws IOException {
+        storeDir = givenDir;
+        tempDir = new File(new File(storeDir, "tmp"), owner.replaceAll("[^\\w.-]", "_"));
+        Files.createDirectories(tempDir.toPath());
+        maxAttachment = givenMaxAttachment;
+        maxMessage = givenMaxMessage;
+        File[] staleFiles = tempDir.listFiles();
+        if (staleFiles != null) {
+            for (File currFile: staleFiles) {
+                Files.deleteIfExists(currFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Get max size of all attachments of one message.
+     * @return size in bytes;
+     */
+    public long getMaxMessage() {
+        return maxMessage;
+    }
+
+    /**
+     * Check declared size of part before reading.<br>
+     * Declared size is size of encoded content, base64 content is
+     * decoded to 3/4 of it.
+     * @param part attachment part;
+     * @param budget bytes left for attachments of message;
+     * @return true if part may fit into limits;
+     * @throws MessagingException
+     */
+    public boolean mayFit(Part part, long budget) throws MessagingException {
+        long declared = part.getSize();
+        if (declared < 0) {
+            return true;
+        }
+        long decoded = declared / 4 * 3;
+        return decoded <= maxAttachment && decoded <= budget;
+    }
+
+    /**
+     * Stream part content to store.
+     * @param part attachment part;
+     * @param budget bytes left for attachments of message;
+     * @return stored attachment or null if it exceeded limits;
+     * @throws MessagingException if part can't be read;
+     * @throws IOException if file can't be written;
+     */
+    public StoredAttachment store(Part part, long budget) throws MessagingException, IOException {
+        long limit = Math.min(maxAttachment, budget);
+        MessageDigest digest = newDigest();
+        byte[] buffer = buffers.get();
+        File tempFile = File.createTempFile("part", ".tmp", tempDir);
+        long size = 0;
+        boolean moved = false;
+        try {
+            try (InputStream input = part.getInputStream(); FileOutputStream output = new FileOutputStream(tempFile)) {
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    size += count;
+                    if (size > limit) {
+                        return null;
+                    }
+                    digest.update(buffer, 0, count);
+                    output.write(buffer, 0, count);
+                }
+            }
+            String hash = toHex(digest.digest());
+            File targetDir = new File(storeDir, hash.substring(0, 2));
+            File targetFile = new File(targetDir, hash);
+            if (!targetFile.exists()) {
+                Files.createDirectories(targetDir.toPath());
+                try {
+                    Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    moved = true;
+                } catch (FileAlreadyExistsException ex) {
+                    // Same content was stored by other thread.
+                }
+            }
+            return new StoredAttachment(hash.substring(0, 2) + "/" + hash, size, fileNameOf(part), contentTypeOf(part));
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Get decoded file name of part.
+     * @param part mail part;
+     * @return file name or null;
+     * @throws MessagingException
+     */
+    static String fileNameOf(Part part) throws MessagingException {
+        String fileName = part.getFileName();
+        if (fileName == null) {
+            return null;
+        }
+        try {
+            return MimeUtility.decodeText(fileName);
+        } catch (java.io.UnsupportedEncodingException ex) {
+            return fileName;
+        }
+    }
+
+    /**
+     * Get base content type of part without parameters.
+     * @param part mail part;
+     * @return content type;
+     * @throws MessagingException
+     */
+    private static String contentTypeOf(Part part) throws MessagingException {
+        String contentType = part.getContentType();
+        if (contentType == null) {
+            return "application/octet-stream";
+        }
+        int paramStart = contentType.indexOf(';');
+        return (paramStart < 0 ? contentType : contentType.substring(0, paramStart)).trim().toLowerCase();
+    }
+
+    /**
+     * Create SHA-256 digest.
+     * @return new digest;
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Convert bytes to lowercase hex string.
+     * @param bytes bytes to convert;
+     * @return hex string;
+     */
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int index = 0; index < bytes.length; index++) {
+            chars[index * 2] = HEX[(bytes[index] >> 4) & 0xf];
+            chars[index * 2 + 1] = HEX[bytes[index] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Attachment saved in store.
+     */
+    public static class StoredAttachment {
+
+        /**
+         * Path of file relative to store directory.
+         */
+        public final String path;
+
+        /**
+         * Size of content in bytes.
+         */
+        public final long size;
+
+        /**
+         * Original file name (may be null).
+         */
+        public final String fileName;
+
+        /**
+         * Content type.
+         */
+        public final String contentType;
+
+        /**
+         * Default constructor.
+         * @param givenPath path of file relative to store directory;
+         * @param givenSize size of content in bytes;
+         * @param givenFileName original file name;
+         * @param givenContentType content type;
+         */
+        StoredAttachment(String givenPath, long givenSize, String givenFileName, String givenContentType) {
+            path = givenPath;
+            size = givenSize;
+            fileName = givenFileName;
+            contentType = givenContentType;
+        }
+
+        /**
+         * Build reference for message property: path, size,
+         * content type and file name separated by semicolon.
+         * @return reference string;
+         */
+        public String toReference() {
+            return path + ";" + size + ";" + contentType + ";" + (fileName == null ? "" : fileName.replace(';', '_'));
+        }
+    }
+}
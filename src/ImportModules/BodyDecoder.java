@@ -0,0 +1,157 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * Streaming decoder of text mail parts.<br>
+ * Transfer encoding (7bit/QP/base64) is removed by part stream,
+ * charset is taken from part content type. Decoder keeps reusable
+ * buffers and is not thread safe.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class BodyDecoder {
+
+    /**
+     * Size of read chunk in chars.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Reusable read chunk.
+     */
+    private final char[] chunk = new char[CHUNK_SIZE];
+
+    /**
+     * Reusable content buffer.
+     */
+    private final StringBuilder buffer = new StringBuilder(CHUNK_SIZE);
+
+    /**
+     * Max count of chars in decoded body.
+     */
+    private final int maxBody;
+
+    /**
+     * Charset for parts without charset parameter.
+     */
+    private final Charset defaultCharset;
+
+    /**
+     * Last decoded body was cut by size limit.
+     */
+    private boolean truncated = false;
+
+    /**
+     * Default constructor.
+     * @param givenMaxBody max count of chars in decoded body;
+     * @param givenDefaultCharset charset for parts without charset parameter;
+     */
+    public BodyDecoder(int givenMaxBody, Charset givenDefaultCharset) {
+        maxBody = givenMaxBody;
+        defaultCharset = givenDefaultCharset;
+    }
+
+    /**
+     * Get max count of chars in decoded body.
+     * @return size limit;
+     */
+    public int getMaxBody() {
+        return maxBody;
+    }
+
+    /**
+     * Open reader over decoded part content.
+     * @param part text mail part;
+     * @return reader with correct charset;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public Reader openReader(Part part) throws MessagingException, IOException {
+        return new InputStreamReader(part.getInputStream(), charsetOf(part, defaultCharset));
+    }
+
+    /**
+     * Decode text part to string with size limit.
+     * @param part text mail part;
+     * @return decoded text;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public String decode(Part part) throws MessagingException, IOException {
+        buffer.setLength(0);
+        truncated = false;
+        try (Reader reader = openReader(part)) {
+            int readed;
+            while ((readed = reader.read(chunk, 0, chunk.length)) != -1) {
+                int allowed = maxBody - buffer.length();
+                if (readed > allowed) {
+                    buffer.append(chunk, 0, allowed);
+                    truncated = true;
+                    break;
+                }
+                buffer.append(chunk, 0, readed);
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Check if last decoded body was cut by size limit.
+     * @return true if body was truncated;
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Get charset of mail part.
+     * @param part mail part;
+     * @param fallback charset to use if part has no valid charset parameter;
+     * @return charset of the part;
+     * @throws MessagingException
+     */
+    public static Charset charsetOf(Part part, Charset fallback) throws MessagingException {
+        String contentType = part.getContentType();
+        if (contentType == null) {
+            return fallback;
+        }
+        try {
+            String charsetName = new ContentType(contentType).getParameter("charset");
+            if (charsetName == null) {
+                return fallback;
+            }
+            return Charset.forName(MimeUtility.javaCharset(charsetName.trim()));
+        } catch (ParseException | IllegalCharsetNameException | UnsupportedCharsetException ex) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of released messages for duplicate detection.<br>
+ * Message is identified by <code>Message-ID</code> and by hash of normalized
+ * subject and body (so forwarded copies with new id are detected as well).
+ * Recent keys are kept in bounded LRU map; all keys of the window are kept in
+ * two rotating Bloom filters, which are saved to disk and take fixed memory.
+ * Keys live in cache at least for one window and at most for two windows.<br>
+ * Exact cache (see {@link #exact()}) keeps all keys without window and without
+ * false positives; it grows with count of messages and lives only in memory.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class DedupeCache {
+
+    /**
+     * Cache file signature.
+     */
+    private static final int FILE_MAGIC = 0x4D445550;
+
+    /**
+     * Target false positive rate of Bloom filter.
+     */
+    private static final double FALSE_POSITIVE_RATE = 0.0001;
+
+    /**
+     * Reply and forward prefixes of subject.
+     */
+    private static final Pattern SUBJECT_PREFIX = Pattern.compile("^(\\s*(re|fw|fwd|відп|пересл)\\s*(\\[\\d+\\])?\\s*:)+\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+    /**
+     * Quote marks at line start.
+     */
+    private static final Pattern QUOTE_MARKS = Pattern.compile("(?m)^[ \\t>]+");
+
+    /**
+     * Any whitespace sequence.
+     */
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /**
+     * Cache file (null for memory-only cache).
+     */
+    private final File cacheFile;
+
+    /**
+     * Dedupe window in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * Recent keys with time of release.
+     */
+    private final LinkedHashMap<Key, Long> recent;
+
+    /**
+     * Size of each Bloom filter in bits.
+     */
+    private final int bitCount;
+
+    /**
+     * Count of hash functions of Bloom filter.
+     */
+    private final int hashCount;
+
+    /**
+     * Bloom filter of current window.
+     */
+    private long[] currentBits;
+
+    /**
+     * Bloom filter of previous window.
+     */
+    private long[] previousBits;
+
+    /**
+     * Start time of current window.
+     */
+    private long currentStart;
+
+    /**
+     * Cache was changed since last save.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Count of detected duplicates.
+     */
+    private long duplicates = 0;
+
+    /**
+     * All remembered keys of exact cache (null for windowed cache).
+     */
+    private final KeySet exactKeys;
+
+    /**
+     * Default constructor: restores cache from file if it was saved with same size.
+     * @param givenFile cache file (null for memory-only cache);
+     * @param givenWindow dedupe window in milliseconds;
+     * @param capacity expected count of letters in one window (each letter takes two keys);
+     * @param recentSize max count of keys in LRU map;
+     * @throws IOException if cache file can't be read;
+     */
+    public DedupeCache(File givenFile, long givenWindow, int capacity, final int recentSize) throws IOException {
+        cacheFile = givenFile;
+        window = givenWindow;
+        recent = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > recentSize;
+            }
+        };
+        double bitsPerKey = -Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+        bitCount = (int) Math.min(Integer.MAX_VALUE - 64L, Math.max(64L, (long) Math.ceil(capacity * 2L * bitsPerKey)));
+        hashCount = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+        currentBits = new long[(bitCount + 63) / 64];
+        previousBits = new long[currentBits.length];
+        currentStart = System.currentTimeMillis();
+        exactKeys = null;
+        if (cacheFile != null && cacheFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Exact cache constructor, use {@link #exact()}.
+     */
+    private DedupeCache() {
+        cacheFile = null;
+        window = Long.MAX_VALUE;
+        recent = new LinkedHashMap<>();
+        bitCount = 0;
+        hashCount = 0;
+        currentBits = new long[0];
+        previousBits = currentBits;
+        exactKeys = new KeySet();
+    }
+
+    /**
+     * Create memory-only cache which remembers all keys exactly: for one-time
+     * imports with unknown count of letters (archive backfill), where
+     * filter of fixed size would reject new letters as copies.
+     * @return new exact cache;
+     */
+    public static DedupeCache exact() {
+        return new DedupeCache();
+    }
+
+    /**
+     * Check if message was released already.
+     * @param messageId value of Message-ID header (may be null);
+     * @param subject message subject (may be null);
+     * @param body message text;
+     * @return true if message is duplicate;
+     */
+    public synchronized boolean isDuplicate(String messageId, String subject, String body) {
+        long now = System.currentTimeMillis();
+        rotate(now);
+        Key idKey = idKey(messageId);
+        Key contentKey = contentKey(subject, body);
+        boolean found = (idKey != null && contains(idKey, now)) || (contentKey != null && contains(contentKey, now));
+        if (found) {
+            duplicates++;
+        }
+        return found;
+    }
+
+    /**
+     * Remember released message; should be called only after message was added to the system.
+     * @param messageId value of Message-ID header (may be null);
+     * @param subject message subject (may be null);
+     * @param body message text;
+     */
+    public synchronized void remember(String messageId, String subject, String body) {
+        long now = System.currentTimeMillis();
+        rotate(now);
+        Key idKey = idKey(messageId);
+        Key contentKey = contentKey(subject, body);
+        if (idKey != null) {
+            add(idKey, now);
+        }
+        if (contentKey != null) {
+            add(contentKey, now);
+        }
+    }
+
+    /**
+     * Build key of Message-ID header.
+     * @param messageId value of Message-ID header (may be null);
+     * @return key or null if message has no id;
+     */
+    private static Key idKey(String messageId) {
+        if (messageId == null || messageId.trim().isEmpty()) {
+            return null;
+        }
+        return Key.of("id:" + messageId.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Build key of normalized subject and text.<br>
+     * Messages without text (attachment-only mails with placeholder content)
+     * get no content key: same subject doesn't make them copies.
+     * @param subject message subject (may be null);
+     * @param body message text (may be null);
+     * @return key or null if message has no text;
+     */
+    private static Key contentKey(String subject, String body) {
+        if (body == null || MailReader.EMPTY_CONTENT.equals(body)) {
+            return null;
+        }
+        String normalizedBody = normalizeBody(body);
+        if (normalizedBody.isEmpty()) {
+            return null;
+        }
+        return Key.of("text:" + normalizeSubject(subject) + "\n" + normalizedBody);
+    }
+
+    /**
+     * Get count of detected duplicates.
+     * @return count of duplicates;
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Save Bloom filters to cache file if they were changed.
+     * @throws IOException if file write failed;
+     */
+    public synchronized void save() throws IOException {
+        if (cacheFile == null || !dirty) {
+            return;
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (FileOutputStream tempStream = new FileOutputStream(tempFile)) {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(tempStream));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(bitCount);
+            output.writeInt(hashCount);
+            output.writeLong(currentStart);
+            for (long currWord: currentBits) {
+                output.writeLong(currWord);
+            }
+            for (long currWord: previousBits) {
+                output.writeLong(currWord);
+            }
+            output.flush();
+            tempStream.getFD().sync();
+        }
+        java.nio.file.Files.move(tempFile.toPath(), cacheFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        dirty = false;
+    }
+
+    /**
+     * Normalize subject: drop reply/forward prefixes, extra spaces and case.
+     * @param subject raw subject (may be null);
+     * @return normalized subject;
+     */
+    static String normalizeSubject(String subject) {
+        if (subject == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(SUBJECT_PREFIX.matcher(subject).replaceFirst("")).replaceAll(" ").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Normalize body: drop quote marks, extra spaces and case.
+     * @param body raw body (may be null);
+     * @return normalized body;
+     */
+    static String normalizeBody(String body) {
+        if (body == null) {
+            return "";
+        }
+        return WHITESPACE.matcher(QUOTE_MARKS.matcher(body).replaceAll("")).replaceAll(" ").trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Start new window if current one is expired.
+     * @param now current time;
+     */
+    private void rotate(long now) {
+        if (exactKeys != null || now - currentStart < window) {
+            return;
+        }
+        if (now - currentStart < 2 * window) {
+            previousBits = currentBits;
+        } else {
+            previousBits = new long[currentBits.length];
+        }
+        currentBits = new long[previousBits.length];
+        currentStart = now;
+        dirty = true;
+    }
+
+    /**
+     * Check key in LRU map and in both Bloom filters.
+     * @param key message key;
+     * @param now current time;
+     * @return true if key was seen within window;
+     */
+    private boolean contains(Key key, long now) {
+        if (exactKeys != null) {
+            return exactKeys.contains(key);
+        }
+        Long releaseTime = recent.get(key);
+        if (releaseTime != null && now - releaseTime < window) {
+            return true;
+        }
+        return testBits(currentBits, key) || testBits(previousBits, key);
+    }
+
+    /**
+     * Remember key in LRU map and current Bloom filter.
+     * @param key message key;
+     * @param now current time;
+     */
+    private void add(Key key, long now) {
+        if (exactKeys != null) {
+            exactKeys.add(key);
+            return;
+        }
+        recent.put(key, now);
+        for (int index = 0; index < hashCount; index++) {
+            int bit = bitIndex(key, index);
+            currentBits[bit >>> 6] |= 1L << bit;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Check if all bits of key are set in filter.
+     * @param bits Bloom filter;
+     * @param key message key;
+     * @return true if key may be in filter;
+     */
+    private boolean testBits(long[] bits, Key key) {
+        for (int index = 0; index < hashCount; index++) {
+            int bit = bitIndex(key, index);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get bit position of key for hash function (double hashing).
+     * @param key message key;
+     * @param index hash function index;
+     * @return bit position;
+     */
+    private int bitIndex(Key key, int index) {
+        long combined = key.high + index * key.low;
+        return (int) ((combined & Long.MAX_VALUE) % bitCount);
+    }
+
+    /**
+     * Read Bloom filters from cache file; broken file or file with other size is ignored.
+     * @throws IOException if file read failed;
+     */
+    private void load() throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (input.readInt() != FILE_MAGIC || input.readInt() != bitCount || input.readInt() != hashCount) {
+                return;
+            }
+            long savedStart = input.readLong();
+            long[] savedCurrent = new long[currentBits.length];
+            long[] savedPrevious = new long[previousBits.length];
+            for (int index = 0; index < savedCurrent.length; index++) {
+                savedCurrent[index] = input.readLong();
+            }
+            for (int index = 0; index < savedPrevious.length; index++) {
+                savedPrevious[index] = input.readLong();
+            }
+            currentBits = savedCurrent;
+            previousBits = savedPrevious;
+            currentStart = savedStart;
+        } catch (EOFException ex) {
+            // File was cut by crash during write: start with empty filters.
+        }
+    }
+
+    /**
+     * 128-bit hash of message key.
+     */
+    private static final class Key {
+
+        /**
+         * High half of hash.
+         */
+        private final long high;
+
+        /**
+         * Low half of hash.
+         */
+        private final long low;
+
+        /**
+         * Private constructor, use {@link #of(java.lang.String)}.
+         * @param givenHigh high half of hash;
+         * @param givenLow low half of hash;
+         */
+        private Key(long givenHigh, long givenLow) {
+            high = givenHigh;
+            low = givenLow;
+        }
+
+        /**
+         * Hash key string.
+         * @param value key string;
+         * @return new key;
+         */
+        static Key of(String value) {
+            byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+            long newHigh = 0;
+            long newLow = 0;
+            for (int index = 0; index < 8; index++) {
+                newHigh = (newHigh << 8) | (digest[index] & 0xFF);
+                newLow = (newLow << 8) | (digest[index + 8] & 0xFF);
+            }
+            return new Key(newHigh, newLow | 1);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).high == high && ((Key) other).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+    }
+
+    /**
+     * Open addressing set of keys: two longs per key without object overhead.
+     */
+    private static final class KeySet {
+
+        /**
+         * Max share of used slots before growth.
+         */
+        private static final double MAX_LOAD = 0.5;
+
+        /**
+         * High halves of keys.
+         */
+        private long[] highs = new long[1024];
+
+        /**
+         * Low halves of keys (zero marks empty slot, keys always have low bit set).
+         */
+        private long[] lows = new long[1024];
+
+        /**
+         * Count of keys in set.
+         */
+        private int size = 0;
+
+        /**
+         * Check if key is in set.
+         * @param key message key;
+         * @return true if key was added;
+         */
+        boolean contains(Key key) {
+            int slot = find(highs, lows, key.high, key.low);
+            return lows[slot] != 0;
+        }
+
+        /**
+         * Add key to set.
+         * @param key message key;
+         */
+        void add(Key key) {
+            int slot = find(highs, lows, key.high, key.low);
+            if (lows[slot] != 0) {
+                return;
+            }
+            highs[slot] = key.high;
+            lows[slot] = key.low;
+            if (++size > lows.length * MAX_LOAD) {
+                grow();
+            }
+        }
+
+        /**
+         * Double table size and move keys.
+         */
+        private void grow() {
+            long[] newHighs = new long[highs.length * 2];
+            long[] newLows = new long[lows.length * 2];
+            for (int index = 0; index < lows.length; index++) {
+                if (lows[index] != 0) {
+                    int slot = find(newHighs, newLows, highs[index], lows[index]);
+                    newHighs[slot] = highs[index];
+                    newLows[slot] = lows[index];
+                }
+            }
+            highs = newHighs;
+            lows = newLows;
+        }
+
+        /**
+         * Find slot of key or first empty slot after it's position (linear probing).
+         * @param tableHighs high halves of table;
+         * @param tableLows low halves of table;
+         * @param high high half of key;
+         * @param low low half of key;
+         * @return slot index;
+         */
+        private static int find(long[] tableHighs, long[] tableLows, long high, long low) {
+            int mask = tableLows.length - 1;
+            int slot = (int) (high ^ (high >>> 32)) & mask;
+            while (tableLows[slot] != 0 && (tableLows[slot] != low || tableHighs[slot] != high)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Router which reads directives from mail subject and body beginning.<br>
+ * All rule keywords are compiled into one Aho-Corasick automaton, so
+ * message text is scanned once and routing cost doesn't depend on count of rules.
+ * Rules file has one rule per line: <code>TYPE,keyword,value</code>, where
+ * TYPE is DIR (directory), TAG (tag) or LANG (language); lines starting with # are ignored.
+ * Keywords are matched as whole words without regard to case.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class DirectiveRouter {
+
+    /**
+     * Type of routing rule.
+     */
+    protected enum RULE_TYPE {
+
+        /**
+         * Add directory to message.
+         */
+        DIR,
+
+        /**
+         * Add tag to message.
+         */
+        TAG,
+
+        /**
+         * Set message language (first match wins).
+         */
+        LANG
+    }
+
+    /**
+     * Empty output of automaton state.
+     */
+    private static final int[] NO_RULES = new int[0];
+
+    /**
+     * Types of rules by index.
+     */
+    private final RULE_TYPE[] ruleTypes;
+
+    /**
+     * Values of rules by index.
+     */
+    private final String[] ruleValues;
+
+    /**
+     * Keyword lengths of rules by index.
+     */
+    private final int[] ruleLengths;
+
+    /**
+     * Failure links of automaton states.
+     */
+    private final int[] fail;
+
+    /**
+     * Rules matched in automaton states (including rules of failure chain).
+     */
+    private final int[][] outputs;
+
+    /**
+     * Transition keys: state and char packed to long (open addressing table).
+     */
+    private final long[] edgeKeys;
+
+    /**
+     * Transition targets.
+     */
+    private final int[] edgeTargets;
+
+    /**
+     * Mask of transition table index.
+     */
+    private final int edgeMask;
+
+    /**
+     * Count of chars of message body which are scanned.
+     */
+    private final int bodyPrefix;
+
+    /**
+     * Build router from rules.
+     * @param lines lines of rules file;
+     * @param givenBodyPrefix count of chars of message body which are scanned;
+     * @param logId log id of import scheme;
+     */
+    public DirectiveRouter(List<String> lines, int givenBodyPrefix, String logId) {
+        bodyPrefix = givenBodyPrefix;
+        List<RULE_TYPE> types = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<String> keywords = new ArrayList<>();
+        for (String currLine: lines) {
+            String line = currLine.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split(",", 3);
+            RULE_TYPE type = null;
+            if (parts.length == 3) {
+                try {
+                    type = RULE_TYPE.valueOf(parts[0].trim().toUpperCase());
+                } catch (IllegalArgumentException iaex) {
+                    // Logged below.
+                }
+            }
+            if (type == null || parts[1].trim().isEmpty() || parts[2].trim().isEmpty()) {
+                IOControl.serverWrapper.log(logId, 1, "неможливо прочитати правило маршрутизації: " + line);
+                continue;
+            }
+            types.add(type);
+            keywords.add(lowerCase(parts[1].trim()));
+            values.add(parts[2].trim());
+        }
+        ruleTypes = types.toArray(new RULE_TYPE[types.size()]);
+        ruleValues = values.toArray(new String[values.size()]);
+        ruleLengths = new int[keywords.size()];
+
+        //Build trie
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<int[]> nodeRules = new ArrayList<>();
+        children.add(new TreeMap<Character, Integer>());
+        nodeRules.add(NO_RULES);
+        int edgeCount = 0;
+        for (int ruleIndex = 0; ruleIndex < keywords.size(); ruleIndex++) {
+            String keyword = keywords.get(ruleIndex);
+            ruleLengths[ruleIndex] = keyword.length();
+            int state = 0;
+            for (int index = 0; index < keyword.length(); index++) {
+                Character currChar = keyword.charAt(index);
+                Integer next = children.get(state).get(currChar);
+                if (next == null) {
+                    next = children.size();
+                    children.get(state).put(currChar, next);
+                    children.add(new TreeMap<Character, Integer>());
+                    nodeRules.add(NO_RULES);
+                    edgeCount++;
+                }
+                state = next;
+            }
+            nodeRules.set(state, append(nodeRules.get(state), ruleIndex));
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(edgeCount, 1) * 2 + 1) * 2;
+        edgeKeys = new long[capacity];
+        Arrays.fill(edgeKeys, -1L);
+        edgeTargets = new int[capacity];
+        edgeMask = capacity - 1;
+        for (int state = 0; state < children.size(); state++) {
+            for (Map.Entry<Character, Integer> currEdge: children.get(state).entrySet()) {
+                putEdge(state, currEdge.getKey(), currEdge.getValue());
+            }
+        }
+
+        //Compute failure links and merged outputs in breadth-first order
+        fail = new int[children.size()];
+        outputs = new int[children.size()][];
+        outputs[0] = nodeRules.get(0);
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (Integer currChild: children.get(0).values()) {
+            fail[currChild] = 0;
+            queue.add(currChild);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputs[state] = merge(nodeRules.get(state), outputs[fail[state]]);
+            for (Map.Entry<Character, Integer> currEdge: children.get(state).entrySet()) {
+                int child = currEdge.getValue();
+                int failState = fail[state];
+                int target;
+                while ((target = edge(failState, currEdge.getKey())) < 0 && failState != 0) {
+                    failState = fail[failState];
+                }
+                fail[child] = target < 0 ? 0 : target;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Load router from rules file.
+     * @param rulesFile rules file in UTF-8;
+     * @param givenBodyPrefix count of chars of message body which are scanned;
+     * @param logId log id of import scheme;
+     * @return new router;
+     * @throws IOException if file can't be read;
+     */
+    public static DirectiveRouter load(File rulesFile, int givenBodyPrefix, String logId) throws IOException {
+        return new DirectiveRouter(Files.readAllLines(rulesFile.toPath(), StandardCharsets.UTF_8), givenBodyPrefix, logId);
+    }
+
+    /**
+     * Get count of compiled rules.
+     * @return rules count;
+     */
+    public int size() {
+        return ruleValues.length;
+    }
+
+    /**
+     * Resolve directories, tags and language of message.
+     * @param subject mail subject (may be null);
+     * @param body message content (may be null);
+     * @return route of message (empty route if nothing matched);
+     */
+    public Route route(String subject, String body) {
+        Route route = new Route();
+        if (subject != null) {
+            scan(subject, subject.length(), route);
+        }
+        if (body != null) {
+            scan(body, Math.min(body.length(), bodyPrefix), route);
+        }
+        return route;
+    }
+
+    /**
+     * Scan text with automaton and apply matched rules.
+     * @param text text to scan;
+     * @param end end index of scanned part;
+     * @param route route to fill;
+     */
+    private void scan(String text, int end, Route route) {
+        int state = 0;
+        for (int index = 0; index < end; index++) {
+            char currChar = Character.toLowerCase(text.charAt(index));
+            int next;
+            while ((next = edge(state, currChar)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (int ruleIndex: outputs[state]) {
+                int start = index - ruleLengths[ruleIndex] + 1;
+                if ((start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                        && (index + 1 >= text.length() || !Character.isLetterOrDigit(text.charAt(index + 1)))) {
+                    route.apply(ruleTypes[ruleIndex], ruleValues[ruleIndex]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find transition of automaton.
+     * @param state current state;
+     * @param currChar next char;
+     * @return target state or -1 if there is no transition;
+     */
+    private int edge(int state, char currChar) {
+        long key = ((long) state << 16) | currChar;
+        int slot = hash(key) & edgeMask;
+        while (edgeKeys[slot] != -1L) {
+            if (edgeKeys[slot] == key) {
+                return edgeTargets[slot];
+            }
+            slot = (slot + 1) & edgeMask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add transition to table.
+     * @param state source state;
+     * @param currChar transition char;
+     * @param target target state;
+     */
+    private void putEdge(int state, char currChar, int target) {
+        long key = ((long) state << 16) | currChar;
+        int slot = hash(key) & edgeMask;
+        while (edgeKeys[slot] != -1L) {
+            slot = (slot + 1) & edgeMask;
+        }
+        edgeKeys[slot] = key;
+        edgeTargets[slot] = target;
+    }
+
+    /**
+     * Mix bits of transition key.
+     * @param key transition key;
+     * @return hash value;
+     */
+    private static int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /**
+     * Convert keyword to lower case char by char, same way as scanned text.
+     * @param keyword rule keyword;
+     * @return keyword in lower case;
+     */
+    private static String lowerCase(String keyword) {
+        char[] chars = keyword.toCharArray();
+        for (int index = 0; index < chars.length; index++) {
+            chars[index] = Character.toLowerCase(chars[index]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Append rule index to array.
+     * @param rules current rules;
+     * @param ruleIndex rule to add;
+     * @return new array;
+     */
+    private static int[] append(int[] rules, int ruleIndex) {
+        int[] result = Arrays.copyOf(rules, rules.length + 1);
+        result[rules.length] = ruleIndex;
+        return result;
+    }
+
+    /**
+     * Merge own rules of state with rules of failure state.
+     * @param own own rules;
+     * @param inherited rules of failure state;
+     * @return merged rules;
+     */
+    private static int[] merge(int[] own, int[] inherited) {
+        if (inherited.length == 0) {
+            return own;
+        } else if (own.length == 0) {
+            return inherited;
+        }
+        int[] result = Arrays.copyOf(own, own.length + inherited.length);
+        System.arraycopy(inherited, 0, result, own.length, inherited.length);
+        return result;
+    }
+
+    /**
+     * Resolved route of message.
+     */
+    public static class Route {
+
+        /**
+         * Matched directories in order of appearance.
+         */
+        private final Set<String> dirs = new LinkedHashSet<>();
+
+        /**
+         * Matched tags in order of appearance.
+         */
+        private final Set<String> tags = new LinkedHashSet<>();
+
+        /**
+         * Matched language (null if not matched).
+         */
+        private String lang;
+
+        /**
+         * Apply matched rule.
+         * @param type rule type;
+         * @param value rule value;
+         */
+        private void apply(RULE_TYPE type, String value) {
+            switch (type) {
+                case DIR:
+                    dirs.add(value);
+                    break;
+                case TAG:
+                    tags.add(value);
+                    break;
+                case LANG:
+                    if (lang == null) {
+                        lang = value;
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Get matched directories.
+         * @return array of directories or null if nothing matched;
+         */
+        public String[] getDirs() {
+            return dirs.isEmpty() ? null : dirs.toArray(new String[dirs.size()]);
+        }
+
+        /**
+         * Get matched tags.
+         * @return array of tags or null if nothing matched;
+         */
+        public String[] getTags() {
+            return tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+        }
+
+        /**
+         * Get matched language.
+         * @return language or null if nothing matched;
+         */
+        public String getLang() {
+            return lang;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming HTML to plain text converter.<br>
+ * Reads characters once and never builds document tree: tags are dropped,
+ * block elements and <code>&lt;br&gt;</code> become line breaks, entities are
+ * resolved, <code>script</code> and <code>style</code> content is skipped.
+ * Extractor keeps reusable buffers and is not thread safe.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class HtmlTextExtractor {
+
+    /**
+     * Tokenizer states.
+     */
+    private enum STATE {
+
+        /**
+         * Plain text.
+         */
+        TEXT,
+
+        /**
+         * Right after <code>&lt;</code>.
+         */
+        TAG_OPEN,
+
+        /**
+         * Reading tag name.
+         */
+        TAG_NAME,
+
+        /**
+         * Skipping tag attributes.
+         */
+        TAG_BODY,
+
+        /**
+         * Skipping quoted attribute value.
+         */
+        TAG_QUOTE,
+
+        /**
+         * Right after <code>&lt;!</code>.
+         */
+        BANG,
+
+        /**
+         * Inside comment.
+         */
+        COMMENT,
+
+        /**
+         * Inside doctype or processing instruction.
+         */
+        DECLARATION,
+
+        /**
+         * Reading entity after <code>&amp;</code>.
+         */
+        ENTITY,
+
+        /**
+         * Inside script or style element.
+         */
+        RAW
+    }
+
+    /**
+     * Size of read chunk in chars.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Max length of entity name.
+     */
+    private static final int ENTITY_LIMIT = 10;
+
+    /**
+     * Elements which break line.
+     */
+    private static final Set<String> BLOCK_TAGS = new HashSet<>(Arrays.asList(
+            "address", "article", "aside", "blockquote", "center", "dd", "div", "dl", "dt",
+            "footer", "form", "header", "hr", "li", "nav", "ol", "pre", "section",
+            "table", "tbody", "td", "th", "thead", "tfoot", "tr", "ul"));
+
+    /**
+     * Elements which separate paragraphs.
+     */
+    private static final Set<String> PARAGRAPH_TAGS = new HashSet<>(Arrays.asList(
+            "p", "h1", "h2", "h3", "h4", "h5", "h6"));
+
+    /**
+     * Elements with skipped content.
+     */
+    private static final Set<String> RAW_TAGS = new HashSet<>(Arrays.asList("script", "style"));
+
+    /**
+     * Named entities which are common in mail.
+     */
+    private static final Map<String, Character> ENTITIES = new HashMap<>();
+
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", '\u00a0');
+        ENTITIES.put("laquo", '«');
+        ENTITIES.put("raquo", '»');
+        ENTITIES.put("ldquo", '“');
+        ENTITIES.put("rdquo", '”');
+        ENTITIES.put("bdquo", '„');
+        ENTITIES.put("lsquo", '‘');
+        ENTITIES.put("rsquo", '’');
+        ENTITIES.put("ndash", '–');
+        ENTITIES.put("mdash", '—');
+        ENTITIES.put("hellip", '…');
+        ENTITIES.put("bull", '•');
+        ENTITIES.put("middot", '·');
+        ENTITIES.put("copy", '©');
+        ENTITIES.put("reg", '®');
+        ENTITIES.put("trade", '™');
+        ENTITIES.put("deg", '°');
+        ENTITIES.put("times", '×');
+        ENTITIES.put("euro", '€');
+        ENTITIES.put("sect", '§');
+        ENTITIES.put("numero", '№');
+        ENTITIES.put("shy", '\u00ad');
+    }
+
+    /**
+     * Reusable read chunk.
+     */
+    private final char[] chunk = new char[CHUNK_SIZE];
+
+    /**
+     * Reusable output buffer.
+     */
+    private final StringBuilder out = new StringBuilder(CHUNK_SIZE);
+
+    /**
+     * Current tag name buffer.
+     */
+    private final StringBuilder tagName = new StringBuilder();
+
+    /**
+     * Current entity buffer.
+     */
+    private final StringBuilder entity = new StringBuilder();
+
+    /**
+     * Current state.
+     */
+    private STATE state;
+
+    /**
+     * Current tag is closing one.
+     */
+    private boolean closingTag;
+
+    /**
+     * Quote char of current attribute value.
+     */
+    private char quote;
+
+    /**
+     * Count of dashes seen in comment (or in comment opening).
+     */
+    private int dashes;
+
+    /**
+     * Closing tag for raw element, like <code>&lt;/script</code>.
+     */
+    private String rawEnd;
+
+    /**
+     * Count of chars matched from raw element end.
+     */
+    private int rawMatched;
+
+    /**
+     * Whitespace is pending before next text char.
+     */
+    private boolean pendingSpace;
+
+    /**
+     * Count of line breaks pending before next text char.
+     */
+    private int pendingBreaks;
+
+    /**
+     * Output limit.
+     */
+    private int limit;
+
+    /**
+     * Last text was cut by size limit.
+     */
+    private boolean truncated;
+
+    /**
+     * Convert HTML stream to plain text.
+     * @param reader HTML characters;
+     * @param maxChars max count of chars in result;
+     * @return plain text;
+     * @throws IOException if read failed;
+     */
+    public String extract(Reader reader, int maxChars) throws IOException {
+        reset(maxChars);
+        try {
+            int readed;
+            while (!truncated && (readed = reader.read(chunk, 0, chunk.length)) != -1) {
+                for (int index = 0; index < readed && !truncated; index++) {
+                    accept(chunk[index]);
+                }
+            }
+            if (state == STATE.ENTITY) {
+                flushEntity(false);
+            }
+        } finally {
+            reader.close();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Check if last text was cut by size limit.
+     * @return true if text was truncated;
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Prepare extractor for new document.
+     * @param maxChars output limit;
+     */
+    private void reset(int maxChars) {
+        out.setLength(0);
+        tagName.setLength(0);
+        entity.setLength(0);
+        state = STATE.TEXT;
+        pendingSpace = false;
+        pendingBreaks = 0;
+        limit = maxChars;
+        truncated = false;
+    }
+
+    /**
+     * Process one input char.
+     * @param ch input char;
+     */
+    private void accept(char ch) {
+        switch (state) {
+            case TEXT:
+                if (ch == '<') {
+                    state = STATE.TAG_OPEN;
+                } else if (ch == '&') {
+                    entity.setLength(0);
+                    state = STATE.ENTITY;
+                } else {
+                    emit(ch);
+                }
+                break;
+            case TAG_OPEN:
+                closingTag = false;
+                tagName.setLength(0);
+                if (ch == '/') {
+                    closingTag = true;
+                    state = STATE.TAG_NAME;
+                } else if (ch == '!') {
+                    dashes = 0;
+                    state = STATE.BANG;
+                } else if (ch == '?') {
+                    state = STATE.DECLARATION;
+                } else if (Character.isLetter(ch)) {
+                    tagName.append(Character.toLowerCase(ch));
+                    state = STATE.TAG_NAME;
+                } else {
+                    state = STATE.TEXT;
+                    emit('<');
+                    accept(ch);
+                }
+                break;
+            case TAG_NAME:
+                if (ch == '>') {
+                    endTag();
+                } else if (Character.isWhitespace(ch) || ch == '/') {
+                    state = STATE.TAG_BODY;
+                } else {
+                    tagName.append(Character.toLowerCase(ch));
+                }
+                break;
+            case TAG_BODY:
+                if (ch == '>') {
+                    endTag();
+                } else if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                    state = STATE.TAG_QUOTE;
+                }
+                break;
+            case TAG_QUOTE:
+                if (ch == quote) {
+                    state = STATE.TAG_BODY;
+                }
+                break;
+            case BANG:
+                if (ch == '-') {
+                    if (++dashes == 2) {
+                        dashes = 0;
+                        state = STATE.COMMENT;
+                    }
+                } else {
+                    state = ch == '>' ? STATE.TEXT : STATE.DECLARATION;
+                }
+                break;
+            case COMMENT:
+                if (ch == '-') {
+                    dashes++;
+                } else if (ch == '>' && dashes >= 2) {
+                    state = STATE.TEXT;
+                } else {
+                    dashes = 0;
+                }
+                break;
+            case DECLARATION:
+                if (ch == '>') {
+                    state = STATE.TEXT;
+                }
+                break;
+            case ENTITY:
+                if (ch == ';') {
+                    flushEntity(true);
+                } else if (Character.isLetterOrDigit(ch) || (ch == '#' && entity.length() == 0)) {
+                    entity.append(ch);
+                    if (entity.length() > ENTITY_LIMIT) {
+                        flushEntity(false);
+                    }
+                } else {
+                    flushEntity(false);
+                    accept(ch);
+                }
+                break;
+            case RAW:
+                char lower = Character.toLowerCase(ch);
+                if (lower == rawEnd.charAt(rawMatched)) {
+                    if (++rawMatched == rawEnd.length()) {
+                        closingTag = true;
+                        tagName.setLength(0);
+                        state = STATE.TAG_BODY;
+                    }
+                } else {
+                    rawMatched = lower == '<' ? 1 : 0;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Handle end of tag.
+     */
+    private void endTag() {
+        state = STATE.TEXT;
+        String name = tagName.toString();
+        if (name.equals("br")) {
+            lineBreak(1);
+        } else if (PARAGRAPH_TAGS.contains(name)) {
+            lineBreak(2);
+        } else if (BLOCK_TAGS.contains(name)) {
+            lineBreak(1);
+        } else if (!closingTag && RAW_TAGS.contains(name)) {
+            rawEnd = "</" + name;
+            rawMatched = 0;
+            state = STATE.RAW;
+        }
+    }
+
+    /**
+     * Resolve collected entity and emit it.
+     * @param terminated entity was terminated by semicolon;
+     */
+    private void flushEntity(boolean terminated) {
+        state = STATE.TEXT;
+        Character resolved = null;
+        if (entity.length() > 1 && entity.charAt(0) == '#') {
+            try {
+                int code;
+                if (entity.charAt(1) == 'x' || entity.charAt(1) == 'X') {
+                    code = Integer.parseInt(entity.substring(2), 16);
+                } else {
+                    code = Integer.parseInt(entity.substring(1));
+                }
+                if (Character.isSupplementaryCodePoint(code)) {
+                    char[] pair = Character.toChars(code);
+                    emit(pair[0]);
+                    emit(pair[1]);
+                    return;
+                } else if (Character.isValidCodePoint(code)) {
+                    resolved = (char) code;
+                }
+            } catch (NumberFormatException ex) {
+                resolved = null;
+            }
+        } else {
+            resolved = ENTITIES.get(entity.toString());
+        }
+        if (resolved != null) {
+            emit(resolved);
+        } else {
+            emit('&');
+            for (int index = 0; index < entity.length(); index++) {
+                emit(entity.charAt(index));
+            }
+            if (terminated) {
+                emit(';');
+            }
+        }
+    }
+
+    /**
+     * Request line breaks before next text.
+     * @param count count of breaks;
+     */
+    private void lineBreak(int count) {
+        pendingBreaks = Math.max(pendingBreaks, count);
+    }
+
+    /**
+     * Append text char with whitespace collapsing.
+     * @param ch text char;
+     */
+    private void emit(char ch) {
+        if (Character.isWhitespace(ch) || ch == '\u00a0') {
+            pendingSpace = true;
+            return;
+        }
+        if (ch == '\u00ad') {
+            return;
+        }
+        if (out.length() > 0) {
+            if (pendingBreaks > 0) {
+                for (int index = 0; index < pendingBreaks; index++) {
+                    append('\n');
+                }
+            } else if (pendingSpace) {
+                append(' ');
+            }
+        }
+        pendingBreaks = 0;
+        pendingSpace = false;
+        append(ch);
+    }
+
+    /**
+     * Append char to output respecting limit.
+     * @param ch char to append;
+     */
+    private void append(char ch) {
+        if (out.length() >= limit) {
+            truncated = true;
+            return;
+        }
+        out.append(ch);
+    }
+}
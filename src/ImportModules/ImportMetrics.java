@@ -0,0 +1,450 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of import scheme.<br>
+ * Recording uses atomic counters only and doesn't allocate;
+ * snapshots are built on JMX or log request.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ImportMetrics implements ImportMetricsMXBean {
+
+    /**
+     * Phases of import cycle.
+     */
+    public enum PHASE {
+
+        /**
+         * Store connect and folder open.
+         */
+        CONNECT,
+
+        /**
+         * Message listing and new messages selection.
+         */
+        LIST,
+
+        /**
+         * Envelope fetch and whitelist check.
+         */
+        HEADERS,
+
+        /**
+         * Message body download.
+         */
+        DOWNLOAD,
+
+        /**
+         * Message parse.
+         */
+        PARSE,
+
+        /**
+         * Release to the system and post action.
+         */
+        RELEASE,
+
+        /**
+         * Report delivery.
+         */
+        REPORT
+    }
+
+    /**
+     * Count of histogram buckets (power of two microseconds, up to ~35 minutes).
+     */
+    private static final int BUCKETS = 32;
+
+    /**
+     * Histograms by phase.
+     */
+    private final Histogram[] histograms = new Histogram[PHASE.values().length];
+
+    /**
+     * New messages found in mailboxes.
+     */
+    private final AtomicLong seen = new AtomicLong();
+
+    /**
+     * Messages which passed whitelist.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Messages from unknown senders.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Messages which can't be downloaded or read.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Skipped duplicates.
+     */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Released messages.
+     */
+    private final AtomicLong released = new AtomicLong();
+
+    /**
+     * Downloaded bytes.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Sent reports.
+     */
+    private final AtomicLong reportsSent = new AtomicLong();
+
+    /**
+     * Failed report delivery attempts.
+     */
+    private final AtomicLong reportsFailed = new AtomicLong();
+
+    /**
+     * Report sender for queue depth (may be null).
+     */
+    private volatile ReportSender reportSource;
+
+    /**
+     * Registered JMX name (null if not registered).
+     */
+    private ObjectName registeredName;
+
+    /**
+     * Default constructor.
+     */
+    public ImportMetrics() {
+        for (int index = 0; index < histograms.length; index++) {
+            histograms[index] = new Histogram();
+        }
+    }
+
+    /**
+     * Register metrics in platform MBean server as <code>ImportMail:type=[type],name=[scheme]</code>.<br>
+     * Metrics of previous instance of same scheme are replaced.
+     * @param typeName importer type (<code>Mail</code> or <code>MailArchive</code>);
+     * @param schemeName name of import scheme;
+     * @throws JMException if registration failed;
+     */
+    public synchronized void register(String typeName, String schemeName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ImportMail:type=" + typeName + ",name=" + ObjectName.quote(String.valueOf(schemeName)));
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        registeredName = name;
+    }
+
+    /**
+     * Remove metrics from MBean server.
+     */
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException ex) {
+                // Already removed.
+            }
+            registeredName = null;
+        }
+    }
+
+    /**
+     * Set source of report queue depth.
+     * @param sender report sender;
+     */
+    public void setReportSource(ReportSender sender) {
+        reportSource = sender;
+    }
+
+    /**
+     * Record duration of phase.
+     * @param phase import phase;
+     * @param startNanos phase start time from {@link System#nanoTime()};
+     */
+    public void record(PHASE phase, long startNanos) {
+        histograms[phase.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Count new messages.
+     * @param count messages count;
+     */
+    public void addSeen(int count) {
+        seen.addAndGet(count);
+    }
+
+    /**
+     * Count accepted and rejected messages after whitelist check.
+     * @param acceptedCount count of accepted messages;
+     * @param rejectedCount count of rejected messages;
+     */
+    public void addChecked(int acceptedCount, int rejectedCount) {
+        accepted.addAndGet(acceptedCount);
+        rejected.addAndGet(rejectedCount);
+    }
+
+    /**
+     * Count failed message.
+     */
+    public void addFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Count skipped duplicate.
+     */
+    public void addDuplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    /**
+     * Count released message.
+     */
+    public void addReleased() {
+        released.incrementAndGet();
+    }
+
+    /**
+     * Count downloaded bytes.
+     * @param count bytes count;
+     */
+    public void addBytes(long count) {
+        if (count > 0) {
+            bytes.addAndGet(count);
+        }
+    }
+
+    /**
+     * Count report delivery attempt.
+     * @param success report was sent;
+     */
+    public void addReport(boolean success) {
+        if (success) {
+            reportsSent.incrementAndGet();
+        } else {
+            reportsFailed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public long getMessagesSeen() {
+        return seen.get();
+    }
+
+    @Override
+    public long getMessagesAccepted() {
+        return accepted.get();
+    }
+
+    @Override
+    public long getMessagesRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getMessagesFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getMessagesDuplicate() {
+        return duplicates.get();
+    }
+
+    @Override
+    public long getMessagesReleased() {
+        return released.get();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getReportsSent() {
+        return reportsSent.get();
+    }
+
+    @Override
+    public long getReportsFailed() {
+        return reportsFailed.get();
+    }
+
+    @Override
+    public int getReportQueueDepth() {
+        ReportSender sender = reportSource;
+        return sender == null ? 0 : sender.getQueueSize();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCount() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (PHASE currPhase: PHASE.values()) {
+            result.put(currPhase.name(), histograms[currPhase.ordinal()].count.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMeanMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (PHASE currPhase: PHASE.values()) {
+            result.put(currPhase.name(), histograms[currPhase.ordinal()].meanMicros());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseP99Micros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (PHASE currPhase: PHASE.values()) {
+            result.put(currPhase.name(), histograms[currPhase.ordinal()].percentileMicros(0.99));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMaxMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (PHASE currPhase: PHASE.values()) {
+            result.put(currPhase.name(), histograms[currPhase.ordinal()].max.get() / 1000);
+        }
+        return result;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("листів: нових ").append(seen.get())
+                .append(", прийнято ").append(accepted.get())
+                .append(", відхилено ").append(rejected.get())
+                .append(", помилок ").append(failed.get())
+                .append(", дублікатів ").append(duplicates.get())
+                .append(", випущено ").append(released.get())
+                .append("; завантажено байт ").append(bytes.get())
+                .append("; відповідей надіслано ").append(reportsSent.get())
+                .append(" (невдалих спроб ").append(reportsFailed.get())
+                .append(", у черзі ").append(getReportQueueDepth()).append(")")
+                .append("; мс (середнє/p99/макс):");
+        for (PHASE currPhase: PHASE.values()) {
+            Histogram currHistogram = histograms[currPhase.ordinal()];
+            if (currHistogram.count.get() > 0) {
+                summary.append(' ').append(currPhase.name().toLowerCase()).append(' ')
+                        .append(currHistogram.meanMicros() / 1000).append('/')
+                        .append(currHistogram.percentileMicros(0.99) / 1000).append('/')
+                        .append(currHistogram.max.get() / 1000000);
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Latency histogram with power of two microsecond buckets.
+     */
+    private static class Histogram {
+
+        /**
+         * Count of measurements by bucket.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Count of measurements.
+         */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * Sum of durations in nanoseconds.
+         */
+        private final AtomicLong sum = new AtomicLong();
+
+        /**
+         * Max duration in nanoseconds.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Record single duration.
+         * @param nanos duration in nanoseconds;
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            long currentMax = max.get();
+            while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+                currentMax = max.get();
+            }
+        }
+
+        /**
+         * Get mean duration.
+         * @return duration in microseconds;
+         */
+        long meanMicros() {
+            long currentCount = count.get();
+            return currentCount == 0 ? 0 : sum.get() / currentCount / 1000;
+        }
+
+        /**
+         * Get percentile of duration as upper bound of bucket.
+         * @param rank percentile rank (0..1);
+         * @return duration in microseconds;
+         */
+        long percentileMicros(double rank) {
+            long total = 0;
+            for (int index = 0; index < BUCKETS; index++) {
+                total += buckets.get(index);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * rank);
+            long passed = 0;
+            for (int index = 0; index < BUCKETS; index++) {
+                passed += buckets.get(index);
+                if (passed >= target) {
+                    return index == 0 ? 0 : (1L << index) - 1;
+                }
+            }
+            return (1L << (BUCKETS - 1)) - 1;
+        }
+    }
+}
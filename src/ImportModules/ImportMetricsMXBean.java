@@ -0,0 +1,119 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.Map;
+
+/**
+ * JMX view of import scheme metrics.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public interface ImportMetricsMXBean {
+
+    /**
+     * Get count of new messages found in mailboxes.
+     * @return messages count;
+     */
+    long getMessagesSeen();
+
+    /**
+     * Get count of messages which passed whitelist.
+     * @return messages count;
+     */
+    long getMessagesAccepted();
+
+    /**
+     * Get count of messages from unknown senders.
+     * @return messages count;
+     */
+    long getMessagesRejected();
+
+    /**
+     * Get count of messages which can't be downloaded or read.
+     * @return messages count;
+     */
+    long getMessagesFailed();
+
+    /**
+     * Get count of skipped duplicates.
+     * @return messages count;
+     */
+    long getMessagesDuplicate();
+
+    /**
+     * Get count of messages released to the system.
+     * @return messages count;
+     */
+    long getMessagesReleased();
+
+    /**
+     * Get count of downloaded bytes.
+     * @return bytes count;
+     */
+    long getBytesDownloaded();
+
+    /**
+     * Get count of sent reports.
+     * @return reports count;
+     */
+    long getReportsSent();
+
+    /**
+     * Get count of failed report delivery attempts.
+     * @return attempts count;
+     */
+    long getReportsFailed();
+
+    /**
+     * Get count of reports waiting for delivery.
+     * @return queue depth;
+     */
+    int getReportQueueDepth();
+
+    /**
+     * Get count of measurements by phase.
+     * @return map of phase name and count;
+     */
+    Map<String, Long> getPhaseCount();
+
+    /**
+     * Get mean phase duration.
+     * @return map of phase name and duration in microseconds;
+     */
+    Map<String, Long> getPhaseMeanMicros();
+
+    /**
+     * Get 99th percentile of phase duration (upper bound of histogram bucket).
+     * @return map of phase name and duration in microseconds;
+     */
+    Map<String, Long> getPhaseP99Micros();
+
+    /**
+     * Get max phase duration.
+     * @return map of phase name and duration in microseconds;
+     */
+    Map<String, Long> getPhaseMaxMicros();
+
+    /**
+     * Get summary line for log.
+     * @return summary string;
+     */
+    String getSummary();
+}
@@ -21,40 +21,70 @@ package ImportModules;
 
 import Generic.CsvElder;
 import Utils.IOControl;
-import com.sun.mail.util.BASE64DecoderStream;
-import com.sun.mail.util.MailSSLSocketFactory;
-import com.sun.mail.util.QPDecoderStream;
-import java.io.BufferedReader;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.pop3.POP3Folder;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.activation.DataSource;
+import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Session;
-import javax.mail.Store;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
-import javax.mail.util.SharedByteArrayInputStream;
-import org.jsoup.Jsoup;
+import javax.mail.search.FlagTerm;
 
 /**
- * Mail POP3 import class.
+ * Mail POP3/IMAP import class.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
 @Utils.RibbonIOModule(type="MAIL", property="IMPORT_MAIL", api_version=1)
 public class Mail extends Import.Importer {
     
+    /**
+     * Mail access protocol enumeration.
+     */
+    protected enum PROTOCOL {
+        
+        /**
+         * POP3 polling.
+         */
+        POP3,
+        
+        /**
+         * IMAP with IDLE push (or short polling if IDLE isn't supported).
+         */
+        IMAP
+    }
+    
     /**
      * Security options enumeration.
      */
@@ -68,7 +98,12 @@ public class Mail extends Import.Importer {
         /**
          * Use SSL connection.
          */
-        SSL
+        SSL,
+        
+        /**
+         * Upgrade plain connection with STARTTLS command.
+         */
+        STARTTLS
     }
     
     /**
@@ -104,6 +139,48 @@ public class Mail extends Import.Importer {
         DELETE
     }
     
+    /**
+     * HTML to text conversion mode.
+     */
+    protected enum HTML_MODE {
+        
+        /**
+         * Streaming tokenizer without document tree.
+         */
+        STREAM,
+        
+        /**
+         * Full Jsoup parse (slower, for broken markup).
+         */
+        JSOUP
+    }
+    
+    /**
+     * Action for messages above size ceiling.
+     */
+    protected enum OVERSIZE_ACTION {
+        
+        /**
+         * Leave message in mailbox untouched until ceiling is raised.
+         */
+        DEFER,
+        
+        /**
+         * Skip message without download and mark it as processed.
+         */
+        REJECT
+    }
+    
+    /**
+     * Current mail protocol.
+     */
+    protected PROTOCOL currentProtocol = PROTOCOL.POP3;
+    
+    /**
+     * Prefix of connection parameters for current protocol (<code>mail_pop3_</code> or <code>mail_imap_</code>).
+     */
+    protected String protocolPrefix = "mail_pop3_";
+    
     /**
      * Current security level.
      */
@@ -120,9 +197,19 @@ public class Mail extends Import.Importer {
     protected WHITELIST_FORMAT currentFormat = WHITELIST_FORMAT.NORMAL;
 
     /**
-     * Extended format whitelist map.
+     * Current HTML conversion mode.
+     */
+    protected HTML_MODE currentHtmlMode = HTML_MODE.STREAM;
+    
+    /**
+     * Current action for messages above size ceiling.
+     */
+    protected OVERSIZE_ACTION currentOversizeAction = OVERSIZE_ACTION.DEFER;
+
+    /**
+     * Whitelist loader with current whitelist snapshot.
      */
-    protected Map<String, WhitelistRecord> whitelistRecords = new HashMap<>();
+    protected WhitelistLoader whitelist;
     
     /**
      * Read input format switch.
@@ -140,7 +227,7 @@ public class Mail extends Import.Importer {
     protected Boolean trustAllCerts = false;
     
     /**
-     * Debug POP3 connection.
+     * Debug mail store connection.
      */
     protected Boolean debugMail = false;
     
@@ -148,6 +235,162 @@ public class Mail extends Import.Importer {
      * Report sender instance.
      */
     private ReportSender sender;
+
+    /**
+     * Cache of released messages for duplicate detection (null if disabled).
+     */
+    private DedupeCache dedupe;
+    
+    /**
+     * Store for attachments (null if attachments are dropped).
+     */
+    private AttachmentStore attachments;
+    
+    /**
+     * Router of message directives (null if mail_read_format is disabled or has no rules).
+     */
+    private DirectiveRouter router;
+    
+    /**
+     * Mail accounts of this scheme.
+     */
+    private final List<MailAccount> accounts = new ArrayList<>();
+    
+    /**
+     * Pool for concurrent accounts polling (null for single account).
+     */
+    private ExecutorService accountPool;
+    
+    /**
+     * Max count of chars in message content.
+     */
+    protected Integer maxBody = 1048576;
+    
+    /**
+     * Charset for text parts without charset parameter.
+     */
+    protected Charset defaultCharset = StandardCharsets.UTF_8;
+    
+    /**
+     * Tags of messages without route.
+     */
+    protected String[] defaultTags = new String[] {"тест"};
+    
+    /**
+     * Language of messages without route.
+     */
+    protected String defaultLang = "UKN";
+    
+    /**
+     * Count of parallel parse workers.
+     */
+    protected Integer pipelineWorkers = 1;
+    
+    /**
+     * Max count of messages downloaded ahead of release.
+     */
+    protected Integer pipelineQueue = 16;
+
+    /**
+     * Max count of released messages between expunges in DELETE mode.
+     */
+    protected Integer deleteBatch = 100;
+    
+    /**
+     * Min size of message for bulk lane (in bytes).
+     */
+    protected Long laneThreshold = 1048576L;
+    
+    /**
+     * Max size of message which can be imported (in bytes, 0 for no limit).
+     */
+    protected Long laneMax = 52428800L;
+    
+    /**
+     * Count of parse workers of bulk lane.
+     */
+    protected Integer bulkWorkersCount = 1;
+    
+    /**
+     * Wait for new mail with IMAP IDLE instead of scheduled polling.
+     */
+    protected Boolean pushMode = false;
+    
+    /**
+     * Poll interval of IMAP account if server doesn't support IDLE (in milliseconds).
+     */
+    protected Long idlePoll = 30000L;
+    
+    /**
+     * Interval of IDLE refresh, servers drop idle connections after 30 minutes (in milliseconds).
+     */
+    protected Long idleRefresh = 1500000L;
+    
+    /**
+     * Max random delay before scheduled poll (in milliseconds, 0 for no delay).
+     */
+    protected Long pollJitter = 0L;
+    
+    /**
+     * Interval of metrics summary in log (in milliseconds, 0 to disable).
+     */
+    protected Long metricsLog = 0L;
+    
+    /**
+     * Time of last metrics summary in log.
+     */
+    private long lastMetricsLog = System.currentTimeMillis();
+    
+    /**
+     * Counters and phase latencies of this scheme.
+     */
+    protected final ImportMetrics metrics = new ImportMetrics();
+    
+    /**
+     * Push watcher threads of IMAP accounts.
+     */
+    private final Map<MailAccount, Thread> watchers = new HashMap<>();
+    
+    /**
+     * Timer for IDLE refresh (null if push mode is disabled).
+     */
+    private ScheduledExecutorService idleTimer;
+    
+    /**
+     * Mail readers for parse workers (one per thread).
+     */
+    private final ThreadLocal<MailReader> readers = new ThreadLocal<MailReader>() {
+        @Override
+        protected MailReader initialValue() {
+            return new MailReader(IOControl.IMPORT_LOGID + ":" + importerName, maxBody, defaultCharset, currentHtmlMode, currConfig.getProperty("mail_read_fallback_dir"), 
+                    defaultTags, defaultLang, attachments, router);
+        }
+    };
+    
+    /**
+     * Fetcher thread which downloads accepted messages.
+     */
+    private ExecutorService fetcher;
+    
+    /**
+     * Pool of parse workers.
+     */
+    protected ExecutorService workers;
+    
+    /**
+     * Fetcher threads of bulk lane.
+     */
+    private ExecutorService bulkFetcher;
+    
+    /**
+     * Pool of parse workers of bulk lane.
+     */
+    private ExecutorService bulkWorkers;
+    
+    /**
+     * Threads which release bulk lane concurrently with fast lane.
+     */
+    private ExecutorService bulkLane;
     
     /**
      * Default constructor;
@@ -156,27 +399,46 @@ public class Mail extends Import.Importer {
     public Mail(Properties givenConfig) {
         super(givenConfig);
         
+        if (givenConfig.containsKey("mail_protocol")) {
+            try {
+                currentProtocol = PROTOCOL.valueOf(givenConfig.getProperty("mail_protocol"));
+            } catch (IllegalArgumentException iaex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр mail_protocol: " + givenConfig.getProperty("mail_protocol"));
+            }
+        }
+        protocolPrefix = "mail_" + currentProtocol.name().toLowerCase() + "_";
+        
         if ("1".equals(givenConfig.getProperty("mail_read_format"))) {
             readFormat = true;
         }
         
+        if (readFormat && givenConfig.containsKey("mail_read_rules")) {
+            java.io.File rulesFile = new java.io.File(IOControl.IMPORT_DIR + "/" + givenConfig.getProperty("mail_read_rules"));
+            try {
+                router = DirectiveRouter.load(rulesFile, readPositive(givenConfig, "mail_read_rules_prefix", 512), IOControl.IMPORT_LOGID + ":" + importerName);
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "завантажено правил маршрутизації: " + router.size());
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо прочитати правила маршрутизації " + rulesFile.getPath() + ", повідомлення випускатимуться за білим списком");
+            }
+        }
+        
         if ("1".equals(givenConfig.getProperty("mail_send_report")) && readFormat) {
             sendReport = true;
         }
         
-        if ("1".equals(givenConfig.getProperty("mail_pop3_trust_all"))) {
+        if ("1".equals(givenConfig.getProperty(protocolPrefix + "trust_all"))) {
             trustAllCerts = true;
         }
         
-        if ("1".equals(givenConfig.getProperty("mail_pop3_debug"))) {
+        if ("1".equals(givenConfig.getProperty(protocolPrefix + "debug"))) {
             debugMail = true;
         }
         
-        if (givenConfig.containsKey("mail_pop3_security")) {
+        if (givenConfig.containsKey(protocolPrefix + "security")) {
             try {
-                currentSecurity = SECURITY.valueOf(givenConfig.getProperty("mail_pop3_security"));
+                currentSecurity = SECURITY.valueOf(givenConfig.getProperty(protocolPrefix + "security"));
             } catch (IllegalArgumentException iaex) {
-                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр mail_pop3_con_security: " + givenConfig.getProperty("mail_pop3_security"));
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр " + protocolPrefix + "security: " + givenConfig.getProperty(protocolPrefix + "security"));
             }
         }
 
@@ -188,6 +450,14 @@ public class Mail extends Import.Importer {
             }
         }
         
+        if (givenConfig.containsKey("mail_lane_oversize")) {
+            try {
+                currentOversizeAction = OVERSIZE_ACTION.valueOf(givenConfig.getProperty("mail_lane_oversize"));
+            } catch (IllegalArgumentException iaex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр mail_lane_oversize: " + givenConfig.getProperty("mail_lane_oversize"));
+            }
+        }
+        
         if (givenConfig.containsKey("mail_read_whitelist_format")) {
             try {
                 currentFormat = WHITELIST_FORMAT.valueOf(givenConfig.getProperty("mail_read_whitelist_format"));
@@ -196,225 +466,1215 @@ public class Mail extends Import.Importer {
             }
         }
 
-        //Attempt to read whitelist from file
-        if (givenConfig.containsKey("mail_read_whitelist")) {
-            readWhitelist(givenConfig.getProperty("mail_read_whitelist"));
+        if (givenConfig.containsKey("mail_read_html")) {
+            try {
+                currentHtmlMode = HTML_MODE.valueOf(givenConfig.getProperty("mail_read_html"));
+            } catch (IllegalArgumentException iaex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр mail_read_html: " + givenConfig.getProperty("mail_read_html"));
+            }
         }
-        
-        //Attempt to read whitelist address from config if extraction from file failed
-        if (givenConfig.containsKey("mail_read_from") && whitelistRecords.isEmpty()) {
-            whitelistRecords.put(givenConfig.getProperty("mail_read_from"), null);
+
+        //Read whitelist from file (or use address from config if file is empty or can't be read)
+        java.io.File whitelistFile = null;
+        if (givenConfig.containsKey("mail_read_whitelist")) {
+            whitelistFile = new java.io.File(IOControl.IMPORT_DIR + "/" + givenConfig.getProperty("mail_read_whitelist"));
         }
+        whitelist = new WhitelistLoader(whitelistFile, currentFormat, givenConfig.getProperty("mail_read_from"), IOControl.IMPORT_LOGID + ":" + importerName);
+        whitelist.startWatching();
         
         //Enable dirty state if there is no address to accept
-        if (whitelistRecords.isEmpty()){
+        if (whitelist.get().isEmpty()){
             IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "немає адрес для прийому повідомлень!");
-            IOControl.serverWrapper.enableDirtyState("MAIL", importerName, importerPrint);
+            IOControl.serverWrapper.enableDirtyState(getModuleType(), importerName, importerPrint);
         }
         
         if (sendReport) {
-            sender = new ReportSender(givenConfig);
+            sender = new ReportSender(givenConfig, IOControl.IMPORT_LOGID + ":" + importerName, new java.io.File(IOControl.IMPORT_DIR + "/" + importerPrint + ".reports"), metrics);
+            metrics.setReportSource(sender);
         }
         
-        System.setProperty("mail.mime.multipart.ignoreexistingboundaryparameter", "true");
-    }
-
-    @Override
-    protected void doImport() {
-        try {
-            final Properties mailInit = new Properties();
-            if (currentSecurity == SECURITY.NONE) {
-                mailInit.put("mail.store.protocol", "pop3");
+        if (!"0".equals(givenConfig.getProperty("mail_dedupe"))) {
+            dedupe = createDedupe(givenConfig);
+        }
+        
+        if (givenConfig.containsKey("mail_read_charset")) {
+            try {
+                defaultCharset = Charset.forName(givenConfig.getProperty("mail_read_charset"));
+            } catch (IllegalArgumentException iaex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр mail_read_charset: " + givenConfig.getProperty("mail_read_charset"));
             }
-            else {
-                mailInit.put("mail.store.protocol", "pop3s");
+        }
+        
+        if (givenConfig.containsKey("mail_read_tags")) {
+            List<String> tags = new ArrayList<>();
+            for (String currTag: givenConfig.getProperty("mail_read_tags").split(",")) {
+                if (!currTag.trim().isEmpty()) {
+                    tags.add(currTag.trim());
+                }
             }
-            
-            if (trustAllCerts) {
-                MailSSLSocketFactory socketFactory= new MailSSLSocketFactory();
-                socketFactory.setTrustAllHosts(true);
-                mailInit.put("mail.pop3s.ssl.socketFactory", socketFactory);
+            defaultTags = tags.toArray(new String[tags.size()]);
+        }
+        defaultLang = givenConfig.getProperty("mail_read_lang", defaultLang).trim();
+        
+        if (givenConfig.containsKey("mail_attach_dir")) {
+            java.io.File attachDir = new java.io.File(givenConfig.getProperty("mail_attach_dir"));
+            if (!attachDir.isAbsolute()) {
+                attachDir = new java.io.File(IOControl.IMPORT_DIR, givenConfig.getProperty("mail_attach_dir"));
             }
-            
-            Session session = Session.getInstance(mailInit);
-            session.setDebug(debugMail);
-            Store store = session.getStore();
-            store.connect(currConfig.getProperty("mail_pop3_address"), currConfig.getProperty("mail_pop3_login"), currConfig.getProperty("mail_pop3_pass"));
-            
-            Folder folder = store.getDefaultFolder().getFolder("INBOX");
-            folder.open(Folder.READ_WRITE);
-            Message[] messages = folder.getMessages();
-            
-            for (Message currMessage: messages) {
-                InternetAddress[] addresses = (InternetAddress[]) currMessage.getFrom();
-                Boolean pass = false;
-                WhitelistRecord passRecord = null;
-                InternetAddress passedAddr = null;
-                
-                if (currentPostAction == POST_ACTION.MARK && currMessage.getFlags().contains(Flags.Flag.SEEN)) {
-                    pass = false;
-                    continue;
-                }
-                
-                for (InternetAddress currAddr: addresses) {
-                    if (whitelistRecords.containsKey(currAddr.getAddress())) {
-                        pass = true;
-                        whitelistRecords.get(currAddr.getAddress());
-                        passedAddr = currAddr;
-                        break;
-                    }
-                }
-                
-                if (pass) {
-
-                    final MessageClasses.Message mailMessage = this.readMail(passedAddr, currMessage, passRecord);
-                    if (mailMessage.CONTENT != null) {
-                        mailMessage.addProperty("root", this.importerName, this.importerPrint);
-                        IOControl.serverWrapper.addMessage(importerName, "MAIL", mailMessage);
-
-                        switch (currentPostAction) {
-                            case DELETE:
-                                currMessage.setFlag(Flags.Flag.DELETED, true);
-                                break;
-                            case MARK:
-                                currMessage.setFlag(Flags.Flag.SEEN, true);
-                                break;
-                        }
-                        
-                        if (sendReport) {
-                            final InternetAddress recipientAddress = passedAddr;
-                            Runnable reportRun = new Runnable() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        sender.sendMessageAsMail(mailMessage, recipientAddress);
-                                    } catch (MessagingException ex) {
-                                        IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 0, "Надсилання відповіді завершилось невдачею");
-                                        IOControl.serverWrapper.postException("Надсилання відповіді завершилось невдачею", ex);
-                                    }
-                                }
-                            };
-                            new Thread(reportRun).start();
-                        }
-                        
-                        //Log this event if such behavior specified by config.
-                        if ("1".equals(currConfig.getProperty("opt_log"))) {
-                            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "прозведено поштового листа від " + passedAddr.getAddress());
-                        }
-                    } else {
-                        IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вдалося відділити зміст повідомлення: " + currMessage.getSubject() + " - " + currMessage.getSentDate().toString());
-                    }
+            try {
+                attachments = new AttachmentStore(attachDir, importerPrint, readPositive(givenConfig, "mail_attach_max_size", 20480) * 1024L, 
+                        readPositive(givenConfig, "mail_attach_max_message", 51200) * 1024L);
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо відкрити сховище вкладень " + attachDir.getPath() + ", вкладення не зберігатимуться");
+            }
+        }
+        
+        maxBody = readPositive(givenConfig, "mail_read_max_body", maxBody);
+        pipelineWorkers = readPositive(givenConfig, "mail_pipeline_workers", pipelineWorkers);
+        pipelineQueue = readPositive(givenConfig, "mail_pipeline_queue", pipelineQueue);
+        deleteBatch = readPositive(givenConfig, "mail_delete_batch", deleteBatch);
+        laneThreshold = readPositive(givenConfig, "mail_lane_threshold", 1024) * 1024L;
+        if ("0".equals(givenConfig.getProperty("mail_lane_max"))) {
+            laneMax = 0L;
+        } else {
+            laneMax = readPositive(givenConfig, "mail_lane_max", 51200) * 1024L;
+        }
+        bulkWorkersCount = readPositive(givenConfig, "mail_lane_bulk_workers", bulkWorkersCount);
+        workers = Executors.newFixedThreadPool(pipelineWorkers, new NamedThreadFactory("mail-" + importerName + "-parse"));
+        
+        //Create default account and additional accounts from list
+        if (givenConfig.containsKey(protocolPrefix + "address")) {
+            addAccount(givenConfig, "");
+        }
+        if (givenConfig.containsKey("mail_accounts")) {
+            for (String currName: givenConfig.getProperty("mail_accounts").split(",")) {
+                if (!currName.trim().isEmpty()) {
+                    addAccount(givenConfig, currName.trim());
                 }
             }
-            
-            folder.close(true);
-            store.close();
         }
-        catch (Exception ex) {
-            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 0, "Виклик pop3 завершено невдачею");
-            IOControl.serverWrapper.postException("Виклик pop3 завершено невдачею", ex);
+        if (givenConfig.containsKey("mail_metrics_log")) {
+            metricsLog = readPositive(givenConfig, "mail_metrics_log", 0) * 60000L;
+        }
+        try {
+            metrics.register(getClass().getSimpleName(), importerName);
+        } catch (javax.management.JMException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо зареєструвати статистику схеми у JMX");
+        }
+        if (givenConfig.containsKey("mail_poll_jitter") && !"0".equals(givenConfig.getProperty("mail_poll_jitter"))) {
+            pollJitter = readPositive(givenConfig, "mail_poll_jitter", 0) * 1000L;
+        }
+        if (accounts.isEmpty() && usesMailbox()) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "немає поштових скриньок для перевірки!");
+            IOControl.serverWrapper.enableDirtyState(getModuleType(), importerName, importerPrint);
+        }
+        
+        fetcher = Executors.newFixedThreadPool(Math.max(accounts.size(), 1), new NamedThreadFactory("mail-" + importerName + "-fetch"));
+        bulkFetcher = Executors.newFixedThreadPool(Math.max(accounts.size(), 1), new NamedThreadFactory("mail-" + importerName + "-bulk-fetch"));
+        bulkWorkers = Executors.newFixedThreadPool(bulkWorkersCount, new NamedThreadFactory("mail-" + importerName + "-bulk-parse"));
+        if (currentProtocol == PROTOCOL.IMAP) {
+            bulkLane = Executors.newFixedThreadPool(Math.max(accounts.size(), 1), new NamedThreadFactory("mail-" + importerName + "-bulk"));
         }
+        if (currentProtocol == PROTOCOL.IMAP && !"0".equals(givenConfig.getProperty("mail_imap_idle"))) {
+            pushMode = true;
+            idlePoll = readPositive(givenConfig, "mail_imap_poll", 30) * 1000L;
+            idleRefresh = readPositive(givenConfig, "mail_imap_idle_refresh", 1500) * 1000L;
+            idleTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mail-" + importerName + "-idle-refresh"));
+        } else if (accounts.size() > 1) {
+            accountPool = Executors.newFixedThreadPool(Math.min(accounts.size(), readPositive(givenConfig, "mail_accounts_threads", 4)), 
+                    new NamedThreadFactory("mail-" + importerName + "-poll"));
+        }
+        
+        System.setProperty("mail.mime.multipart.ignoreexistingboundaryparameter", "true");
     }
 
     @Override
-    protected void resetState() {
-        // Do nothing now.
+    protected void doImport() {
+        if (pushMode) {
+            startWatchers();
+        } else {
+            waitJitter();
+            if (accountPool == null) {
+                for (MailAccount currAccount: accounts) {
+                    pollScheduled(currAccount);
+                }
+            } else {
+                pollAccounts();
+            }
+        }
+        finishImport();
     }
-
-    @Override
-    public void tryRecover() {
-        // Do nothing now.
+    
+    /**
+     * Save duplicate cache and write metrics summary after import cycle.
+     */
+    protected void finishImport() {
+        if (dedupe != null) {
+            try {
+                dedupe.save();
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо зберегти кеш дублікатів");
+            }
+        }
+        if (metricsLog > 0 && System.currentTimeMillis() - lastMetricsLog >= metricsLog) {
+            lastMetricsLog = System.currentTimeMillis();
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "статистика: " + metrics.getSummary());
+        }
     }
     
-    private MessageClasses.Message readMail(InternetAddress address, Message message, WhitelistRecord passRecord) throws MessagingException, IOException {
-        MessageClasses.Message newMessage = new MessageClasses.Message();
-        newMessage.HEADER = message.getSubject();
-        newMessage.AUTHOR = "root";
-        newMessage.TAGS = new String[] {"тест"};
-        newMessage.LANG = "UKN";
-        newMessage.ORIG_INDEX = "-1";
-        
-        MimeMessage pop3Message = (MimeMessage) message;
-        Object content = pop3Message.getContent();
-        
-        if (pop3Message.isMimeType("text/plain")) {
-            if (content instanceof SharedByteArrayInputStream || content instanceof QPDecoderStream || content instanceof BASE64DecoderStream) {
-                InputStream stream = (InputStream) content;
-
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-
-                StringBuffer contentBuffer = new StringBuffer();
-                String currentLine = null;
-                while ((currentLine = reader.readLine()) != null) {
-                    contentBuffer.append(currentLine);
-                    contentBuffer.append("\n");
+    /**
+     * Start push watchers for accounts which don't have running one.
+     */
+    private void startWatchers() {
+        synchronized (watchers) {
+            for (MailAccount currAccount: accounts) {
+                Thread currWatcher = watchers.get(currAccount);
+                if (currWatcher == null || !currWatcher.isAlive()) {
+                    currWatcher = new Thread(new IdleWatcher(currAccount), "mail-" + importerName + "-idle" + (currAccount.name.isEmpty() ? "" : "-" + currAccount.name));
+                    currWatcher.setDaemon(true);
+                    currWatcher.start();
+                    watchers.put(currAccount, currWatcher);
                 }
-                newMessage.CONTENT = contentBuffer.toString();
             }
-        } else if (pop3Message.isMimeType("multipart/*")) {
-            DataSource source = new ByteArrayDataSource(pop3Message.getInputStream(), "multipart/*");
-            Multipart mp = new MimeMultipart(source); 
-            
-            int count = mp.getCount();
-            
-            
-            newMessage.CONTENT = "EMPTY MESSAGE";
-        } else if (pop3Message.isMimeType("text/html")) {
-            if (content instanceof SharedByteArrayInputStream || content instanceof QPDecoderStream) {
-                InputStream stream = (InputStream) content;
-
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-
-                StringBuffer contentBuffer = new StringBuffer();
-                String currentLine = null;
-                while ((currentLine = reader.readLine()) != null) {
-                    contentBuffer.append(currentLine);
-                    contentBuffer.append("\n");
+        }
+    }
+    
+    /**
+     * Poll all accounts in parallel and wait for them.
+     */
+    private void pollAccounts() {
+        List<Future<?>> polls = new ArrayList<>();
+        for (final MailAccount currAccount: accounts) {
+            polls.add(accountPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    pollScheduled(currAccount);
                 }
-                String plainText = Jsoup.parse(contentBuffer.toString()).text();
-                newMessage.CONTENT = plainText;
-            }
+            }));
         }
-        
-        if (passRecord != null) {
-            newMessage.setCopyright("root", passRecord.COPYRIGHT);
-            newMessage.DIRS = passRecord.DIRS;
-        } else {
-            newMessage.setCopyright("root", address.getPersonal());
-            newMessage.DIRS = new String[] {currConfig.getProperty("mail_read_fallback_dir")};
+        for (Future<?> currPoll: polls) {
+            try {
+                currPoll.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                IOControl.serverWrapper.postException("Виклик " + currentProtocol.name().toLowerCase() + " завершено невдачею", ex.getCause());
+            }
         }
-        
-        return newMessage;
     }
     
     /**
-     * Read white list records from file depending on it's format and fill records map.
-     * @param filename file to read;
+     * Sleep random time before scheduled poll, so schemes with 
+     * same timeout don't connect to server at the same moment.
      */
-    private void readWhitelist(String filename) {
+    private void waitJitter() {
+        if (pollJitter <= 0) {
+            return;
+        }
         try {
-            String[] records = new String(java.nio.file.Files.readAllBytes(new java.io.File(IOControl.IMPORT_DIR + "/" + filename).toPath())).split("\n");
-            for (String currRecord: records) {
-                if (currentFormat == WHITELIST_FORMAT.NORMAL) {
-                    whitelistRecords.put(currRecord, null);
-                }
-                else {
-                    WhitelistRecord newRecord = new WhitelistRecord(currRecord);
-                    whitelistRecords.put(newRecord.ADDRESS, newRecord);
-                }
-            }
-            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "завантажено список з адресами: " + whitelistRecords.size());
-        } catch (java.io.IOException ex) {
-            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, 
-            "неможливо прочитати список дозволених адрес для прийому - імпорт буде дозволено тільки для адреси з параметра 'mail_read_from'\n"
-            + "Шлях до файлу списку розсилки:" + IOControl.IMPORT_DIR + "/" + filename);
+            Thread.sleep(java.util.concurrent.ThreadLocalRandom.current().nextLong(pollJitter));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Poll account on timer tick according to it's schedule: 
+     * skip tick if mailbox was empty lately, repeat poll at once while new mail arrives.
+     * @param account account to poll;
+     */
+    private void pollScheduled(MailAccount account) {
+        if (!account.scheduler.isDue()) {
+            return;
+        }
+        boolean again = true;
+        while (again && !Thread.currentThread().isInterrupted()) {
+            again = account.scheduler.finishPass(pollAccount(account));
+        }
+    }
+    
+    /**
+     * Poll single mail account. Errors are isolated within account.
+     * @param account account to poll;
+     * @return true if poll was finished without errors;
+     */
+    private boolean pollAccount(MailAccount account) {
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            boolean hasMore = true;
+            while (hasMore) {
+                hasMore = pollBatch(account);
+            }
+            success = true;
+        }
+        catch (Exception ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 0, "Виклик " + currentProtocol.name().toLowerCase() + " завершено невдачею" + (account.name.isEmpty() ? "" : " (скринька " + account.name + ")"));
+            IOControl.serverWrapper.postException("Виклик " + currentProtocol.name().toLowerCase() + " завершено невдачею", ex);
+        } finally {
+            account.recordPoll(System.currentTimeMillis() - startTime, success);
+            if (debugMail) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, account.getStats());
+            }
+        }
+        return success;
+    }
+    
+    /**
+     * Poll single batch of messages and close inbox.<br>
+     * In DELETE mode batch is limited to <code>deleteBatch</code> accepted messages 
+     * and released messages are expunged on close; folder is closed even 
+     * if batch failed, so already released messages are not imported twice.
+     * @param account account to poll;
+     * @return true if there are more new messages for next batch;
+     * @throws MessagingException if mailbox operation failed;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private boolean pollBatch(MailAccount account) throws MessagingException, InterruptedException {
+        long start = System.nanoTime();
+        Folder folder = account.connection.openInbox();
+        metrics.record(ImportMetrics.PHASE.CONNECT, start);
+        boolean hasMore = false;
+        try {
+            if (folder instanceof IMAPFolder) {
+                account.polledUidNext = ((IMAPFolder) folder).getUIDNext();
+            }
+            start = System.nanoTime();
+            Message[] messages = listMessages(folder);
+            List<Message> newMessages = selectNewMessages(account, folder, messages);
+            metrics.record(ImportMetrics.PHASE.LIST, start);
+            metrics.addSeen(newMessages.size());
+            
+            //Scan headers in chunks until batch is full; deferred messages don't fill the batch
+            int limit = currentPostAction == POST_ACTION.DELETE ? deleteBatch : Integer.MAX_VALUE;
+            List<IncomingMail> accepted = new ArrayList<>();
+            int rejected = 0;
+            int scanned = 0;
+            while (scanned < newMessages.size() && accepted.size() + rejected < limit) {
+                int chunk = Math.min(newMessages.size() - scanned, limit - accepted.size() - rejected);
+                start = System.nanoTime();
+                List<IncomingMail> chunkAccepted = filterByWhitelist(account, folder, newMessages.subList(scanned, scanned + chunk));
+                metrics.record(ImportMetrics.PHASE.HEADERS, start);
+                metrics.addChecked(chunkAccepted.size(), chunk - chunkAccepted.size());
+                rejected += applySizeCeiling(account, folder, chunkAccepted);
+                accepted.addAll(chunkAccepted);
+                scanned += chunk;
+            }
+            
+            if (!accepted.isEmpty() || rejected > 0) {
+                int processed = rejected + runLanes(account, folder, accepted);
+                account.scheduler.recordFound(processed);
+                hasMore = processed > 0 && scanned < newMessages.size();
+            }
+        } finally {
+            if (account.connection.closeInbox(folder, true) && account.journal != null) {
+                try {
+                    account.journal.clear();
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо очистити журнал випущених листів");
+                }
+            }
+        }
+        return hasMore;
+    }
+    
+    /**
+     * Create mail account from config and add it to scheme.<br>
+     * Account parameters are read with <code>mail_pop3_[name_]</code> 
+     * or <code>mail_imap_[name_]</code> prefix.
+     * @param config scheme config;
+     * @param name account name (empty for default account);
+     */
+    private void addAccount(Properties config, String name) {
+        String prefix = name.isEmpty() ? protocolPrefix : protocolPrefix + name + "_";
+        SECURITY accountSecurity = currentSecurity;
+        if (config.containsKey(prefix + "security")) {
+            try {
+                accountSecurity = SECURITY.valueOf(config.getProperty(prefix + "security"));
+            } catch (IllegalArgumentException iaex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр " + prefix + "security: " + config.getProperty(prefix + "security"));
+            }
+        }
+        
+        MailConnection accountConnection;
+        try {
+            String storeProtocol = currentProtocol.name().toLowerCase();
+            accountConnection = new MailConnection(accountSecurity == SECURITY.SSL ? storeProtocol + "s" : storeProtocol, 
+                    config.getProperty(prefix + "address"), 
+                    Integer.parseInt(config.getProperty(prefix + "port", "-1")), 
+                    config.getProperty(prefix + "login"), 
+                    config.getProperty(prefix + "pass", config.getProperty(prefix + "password")), 
+                    accountSecurity == SECURITY.STARTTLS, trustAllCerts, debugMail, 
+                    Integer.parseInt(config.getProperty(protocolPrefix + "reconnect_max", "300")),
+                    !"0".equals(config.getProperty("mail_pop3_filecache")),
+                    config.getProperty("mail_pop3_filecache_dir"));
+        } catch (java.security.GeneralSecurityException | NumberFormatException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо налаштувати з'єднання з поштовим сервером " + config.getProperty(prefix + "address"));
+            IOControl.serverWrapper.postException("Неможливо налаштувати з'єднання з поштовим сервером", ex);
+            IOControl.serverWrapper.enableDirtyState(getModuleType(), importerName, importerPrint);
+            return;
+        }
+        
+        //Load index of processed messages
+        UidlIndex accountIndex = null;
+        try {
+            accountIndex = new UidlIndex(new java.io.File(IOControl.IMPORT_DIR + "/" + importerPrint + (name.isEmpty() ? "" : "-" + name) + ".uidl"));
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "завантажено індекс оброблених листів: " + accountIndex.size());
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо відкрити індекс оброблених листів, буде проведено повну перевірку скриньки");
+        }
+        
+        //Open journal of released messages for DELETE mode
+        ReleaseJournal accountJournal = null;
+        if (currentPostAction == POST_ACTION.DELETE) {
+            try {
+                accountJournal = new ReleaseJournal(new java.io.File(IOControl.IMPORT_DIR + "/" + importerPrint + (name.isEmpty() ? "" : "-" + name) + ".journal"));
+                if (!accountJournal.isEmpty()) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 2, "знайдено випущені, але не видалені листи: їх буде видалено без повторного імпорту");
+                }
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо відкрити журнал випущених листів");
+            }
+        }
+        
+        accounts.add(new MailAccount(name, accountConnection, accountIndex, accountJournal, 
+                new PollScheduler(readPositive(config, "mail_poll_drain_max", 20), readPositive(config, "mail_poll_backoff_max", 8))));
+    }
+
+    /**
+     * Apply size ceiling to accepted messages by size from header pass 
+     * (POP3 LIST or IMAP RFC822.SIZE), before any body is downloaded.<br>
+     * Oversize messages are removed from list: rejected ones are marked 
+     * as processed, deferred ones are left in mailbox untouched.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param accepted messages which passed header check;
+     * @return count of rejected messages;
+     * @throws MessagingException if post action failed;
+     */
+    private int applySizeCeiling(MailAccount account, Folder folder, List<IncomingMail> accepted) throws MessagingException {
+        if (laneMax <= 0) {
+            return 0;
+        }
+        int rejected = 0;
+        java.util.Iterator<IncomingMail> iterator = accepted.iterator();
+        while (iterator.hasNext()) {
+            IncomingMail currMail = iterator.next();
+            int size = currMail.message.getSize();
+            if (size <= laneMax) {
+                continue;
+            }
+            iterator.remove();
+            if (currentOversizeAction == OVERSIZE_ACTION.REJECT) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "відхилено завеликого поштового листа від " + currMail.address.getAddress() + " (" + size / 1024 + " КБ)");
+                if (currentPostAction == POST_ACTION.MARK) {
+                    currMail.message.setFlag(Flags.Flag.SEEN, true);
+                }
+                markProcessed(account, folder, currMail.message);
+                rejected++;
+            } else {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 2, "відкладено завеликого поштового листа від " + currMail.address.getAddress() + " (" + size / 1024 + " КБ)");
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Split accepted messages by size into fast and bulk lanes, each lane 
+     * has own fetcher and parse workers and releases messages in mailbox order.<br>
+     * IMAP lanes share one folder connection, which serializes protocol calls; 
+     * bodies are fetched in chunks, so bulk lane runs concurrently with fast lane 
+     * and small messages are fetched between chunks of big ones. 
+     * POP3 session downloads one message at once, so bulk lane starts after fast lane.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param accepted messages which passed header check and size ceiling;
+     * @return count of released messages;
+     * @throws MessagingException if post action failed;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private int runLanes(final MailAccount account, final Folder folder, List<IncomingMail> accepted) throws MessagingException, InterruptedException {
+        List<IncomingMail> fastLane = new ArrayList<>();
+        final List<IncomingMail> bulkLaneMails = new ArrayList<>();
+        for (IncomingMail currMail: accepted) {
+            if (currMail.message.getSize() > laneThreshold) {
+                bulkLaneMails.add(currMail);
+            } else {
+                fastLane.add(currMail);
+            }
+        }
+        
+        Future<Integer> bulkTask = null;
+        if (bulkLane != null && !bulkLaneMails.isEmpty()) {
+            bulkTask = bulkLane.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return runPipeline(account, folder, bulkLaneMails, bulkFetcher, bulkWorkers);
+                }
+            });
+        }
+        int processed = 0;
+        try {
+            processed += runPipeline(account, folder, fastLane, fetcher, workers);
+            if (bulkTask != null) {
+                processed += bulkTask.get();
+                bulkTask = null;
+            } else if (!bulkLaneMails.isEmpty()) {
+                processed += runPipeline(account, folder, bulkLaneMails, bulkFetcher, bulkWorkers);
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof MessagingException) {
+                throw (MessagingException) ex.getCause();
+            } else if (ex.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            if (bulkTask != null) {
+                bulkTask.cancel(true);
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * Process accepted messages in pipeline: fetcher thread downloads messages, 
+     * parse workers read them in parallel and current thread releases them in mailbox order.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param accepted messages which passed header check;
+     * @param fetchPool fetcher threads of lane;
+     * @param parsePool parse workers of lane;
+     * @return count of released messages;
+     * @throws MessagingException if post action failed;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private int runPipeline(MailAccount account, Folder folder, final List<IncomingMail> accepted, 
+            ExecutorService fetchPool, final ExecutorService parsePool) throws MessagingException, InterruptedException {
+        if (accepted.isEmpty()) {
+            return 0;
+        }
+        final BlockingQueue<Future<MessageClasses.Message>> releaseQueue = new ArrayBlockingQueue<>(pipelineQueue);
+        Future<?> fetchTask = fetchPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (final IncomingMail currMail: accepted) {
+                        Future<MessageClasses.Message> parsed;
+                        try {
+                            long start = System.nanoTime();
+                            final Message downloaded = download(currMail.message);
+                            metrics.record(ImportMetrics.PHASE.DOWNLOAD, start);
+                            metrics.addBytes(currMail.message.getSize());
+                            parsed = parsePool.submit(new Callable<MessageClasses.Message>() {
+                                @Override
+                                public MessageClasses.Message call() throws Exception {
+                                    long start = System.nanoTime();
+                                    try {
+                                        MessageClasses.Message result = readMail(currMail.address, downloaded, currMail.record);
+                                        metrics.record(ImportMetrics.PHASE.PARSE, start);
+                                        return result;
+                                    } finally {
+                                        if (downloaded instanceof SpooledMessage) {
+                                            ((SpooledMessage) downloaded).dispose();
+                                        }
+                                    }
+                                }
+                            });
+                        } catch (MessagingException | IOException | RuntimeException ex) {
+                            parsed = failedFuture(ex);
+                        }
+                        releaseQueue.put(parsed);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        
+        int releasedCount = 0;
+        try {
+            for (IncomingMail currMail: accepted) {
+                Future<MessageClasses.Message> parsed = takeParsed(releaseQueue, fetchTask);
+                try {
+                    MessageClasses.Message mailMessage = parsed.get();
+                    long start = System.nanoTime();
+                    if (releaseMail(account, folder, currMail, mailMessage)) {
+                        releasedCount++;
+                    }
+                    metrics.record(ImportMetrics.PHASE.RELEASE, start);
+                } catch (ExecutionException ex) {
+                    metrics.addFailed();
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вдалося прочитати поштового листа від " + currMail.address.getAddress());
+                    IOControl.serverWrapper.postException("Не вдалося прочитати поштового листа", ex.getCause());
+                }
+            }
+        } finally {
+            fetchTask.cancel(true);
+        }
+        return releasedCount;
+    }
+    
+    /**
+     * Download whole message in fetcher thread.<br>
+     * POP3 message keeps content after first read; IMAP message content 
+     * stream is lazy, so message is copied to fetch body here and not 
+     * in parse workers: messages of fast lane are copied to memory, 
+     * bigger messages are written to temporary file.
+     * @param message message from folder;
+     * @return message with downloaded content;
+     * @throws MessagingException
+     * @throws IOException 
+     */
+    private Message download(Message message) throws MessagingException, IOException {
+        if (message instanceof IMAPMessage) {
+            if (message.getSize() > laneThreshold || message.getSize() < 0) {
+                return SpooledMessage.download(message, null);
+            }
+            return new MimeMessage((MimeMessage) message);
+        }
+        message.getInputStream().close();
+        return message;
+    }
+    
+    /**
+     * Take next parsed message from pipeline queue, watching that fetcher is still alive.
+     * @param releaseQueue pipeline queue;
+     * @param fetchTask fetcher task;
+     * @return future of parsed message;
+     * @throws MessagingException if fetcher stopped without queuing message;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private static Future<MessageClasses.Message> takeParsed(BlockingQueue<Future<MessageClasses.Message>> releaseQueue, Future<?> fetchTask) 
+            throws MessagingException, InterruptedException {
+        while (true) {
+            Future<MessageClasses.Message> parsed = releaseQueue.poll(1, TimeUnit.SECONDS);
+            if (parsed != null) {
+                return parsed;
+            }
+            if (fetchTask.isDone()) {
+                parsed = releaseQueue.poll();
+                if (parsed != null) {
+                    return parsed;
+                }
+                try {
+                    fetchTask.get();
+                } catch (ExecutionException ex) {
+                    throw new MessagingException("Fetcher failed", ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+                } catch (java.util.concurrent.CancellationException ex) {
+                    // Reported below.
+                }
+                throw new MessagingException("Fetcher stopped before queuing all messages");
+            }
+        }
+    }
+    
+    /**
+     * Release parsed message to the system and apply post action.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param currMail accepted mail;
+     * @param mailMessage parsed message;
+     * @return true if message was released or skipped as duplicate;
+     * @throws MessagingException 
+     */
+    private boolean releaseMail(MailAccount account, Folder folder, IncomingMail currMail, MessageClasses.Message mailMessage) throws MessagingException {
+        Message currMessage = currMail.message;
+        InternetAddress passedAddr = currMail.address;
+        if (mailMessage.CONTENT != null) {
+            if (currentPostAction == POST_ACTION.DELETE) {
+                journalRelease(account, folder, currMessage, false);
+            }
+            boolean duplicate = !publishMail(currMessage, mailMessage);
+
+            switch (currentPostAction) {
+                case DELETE:
+                    journalRelease(account, folder, currMessage, true);
+                    currMessage.setFlag(Flags.Flag.DELETED, true);
+                    break;
+                case MARK:
+                    currMessage.setFlag(Flags.Flag.SEEN, true);
+                    break;
+            }
+            
+            markProcessed(account, folder, currMessage);
+            if (duplicate) {
+                account.recordDuplicate();
+            } else {
+                account.recordRelease();
+            }
+            finishRelease(!duplicate, passedAddr, mailMessage);
+            return true;
+        } else {
+            metrics.addFailed();
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вдалося відділити зміст повідомлення: " + currMessage.getSubject() + " - " + currMessage.getSentDate().toString());
+            return false;
+        }
+    }
+    
+    /**
+     * Check parsed message against duplicate cache and add it to the system.
+     * @param source source mail;
+     * @param mailMessage parsed message with content;
+     * @return true if message was added, false if it's duplicate;
+     * @throws MessagingException 
+     */
+    protected boolean publishMail(Message source, MessageClasses.Message mailMessage) throws MessagingException {
+        if (dedupe == null) {
+            mailMessage.addProperty("root", this.importerName, this.importerPrint);
+            IOControl.serverWrapper.addMessage(importerName, getModuleType(), mailMessage);
+            return true;
+        }
+        String messageId = source instanceof MimeMessage ? ((MimeMessage) source).getMessageID() : null;
+        //Check and remember under one lock, so copies from parallel accounts aren't both released.
+        synchronized (dedupe) {
+            if (dedupe.isDuplicate(messageId, mailMessage.HEADER, mailMessage.CONTENT)) {
+                return false;
+            }
+            mailMessage.addProperty("root", this.importerName, this.importerPrint);
+            IOControl.serverWrapper.addMessage(importerName, getModuleType(), mailMessage);
+            dedupe.remember(messageId, mailMessage.HEADER, mailMessage.CONTENT);
+        }
+        return true;
+    }
+    
+    /**
+     * Count and log released message, queue report to sender.
+     * @param published message was added to the system (false for duplicate);
+     * @param address whitelisted sender address;
+     * @param mailMessage parsed message;
+     */
+    protected void finishRelease(boolean published, InternetAddress address, MessageClasses.Message mailMessage) {
+        if (!published) {
+            metrics.addDuplicate();
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 2, "пропущено дублікат поштового листа від " + address.getAddress() + ": " + mailMessage.HEADER);
+            return;
+        }
+        
+        if (sendReport) {
+            sender.queueReport(mailMessage, address);
+        }
+        metrics.addReleased();
+        
+        //Log this event if such behavior specified by config.
+        if ("1".equals(currConfig.getProperty("opt_log"))) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 3, "прозведено поштового листа від " + address.getAddress());
+        }
+    }
+    
+    /**
+     * Build already failed future for message which can't be downloaded.
+     * @param ex download exception;
+     * @return failed future;
+     */
+    private static Future<MessageClasses.Message> failedFuture(final Exception ex) {
+        FutureTask<MessageClasses.Message> failed = new FutureTask<>(new Callable<MessageClasses.Message>() {
+            @Override
+            public MessageClasses.Message call() throws Exception {
+                throw ex;
+            }
+        });
+        failed.run();
+        return failed;
+    }
+    
+    /**
+     * Select messages which wasn't processed before.<br>
+     * Uses UIDL index if it's available, otherwise falls back to SEEN flag in MARK mode. 
+     * Messages from release journal are flagged for deletion and skipped.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param messages all messages from folder;
+     * @return list of new messages;
+     * @throws MessagingException if UIDL listing failed;
+     */
+    private List<Message> selectNewMessages(MailAccount account, Folder folder, Message[] messages) throws MessagingException {
+        List<Message> newMessages = new ArrayList<>();
+        UidlIndex uidIndex = account.index;
+        ReleaseJournal journal = account.journal;
+        if ((uidIndex != null || journal != null) && hasUids(folder)) {
+            FetchProfile uidProfile = new FetchProfile();
+            uidProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, uidProfile);
+            
+            Set<String> serverUids = new HashSet<>();
+            for (Message currMessage: messages) {
+                String uid = uidOf(folder, currMessage);
+                if (uid != null) {
+                    serverUids.add(uid);
+                }
+                if (uid != null && journal != null && journal.contains(uid)) {
+                    currMessage.setFlag(Flags.Flag.DELETED, true);
+                } else if (uid != null && journal != null && journal.isPending(uid)) {
+                    //Release was interrupted after intent record: message might be in the system already
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "випуск листа " + uid + " перервано збоєм, лист залишено у скриньці без повторного імпорту");
+                    markProcessed(account, folder, currMessage);
+                } else if (uid == null || uidIndex == null) {
+                    if (isUnseen(currMessage)) {
+                        newMessages.add(currMessage);
+                    }
+                } else if (!uidIndex.contains(uid)) {
+                    newMessages.add(currMessage);
+                }
+            }
+            
+            if (journal != null) {
+                journal.dropPending();
+            }
+            if (uidIndex != null) {
+                try {
+                    uidIndex.retain(serverUids);
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо стиснути індекс оброблених листів");
+                }
+            }
+        } else if (folder instanceof IMAPFolder) {
+            //Server already selected messages by flags
+            newMessages.addAll(Arrays.asList(messages));
+        } else {
+            for (Message currMessage: messages) {
+                if (isUnseen(currMessage)) {
+                    newMessages.add(currMessage);
+                }
+            }
+        }
+        return newMessages;
+    }
+    
+    /**
+     * Header pass: fetch envelopes of new messages in one batch 
+     * and drop messages from addresses which are not in whitelist.<br>
+     * Bodies are not downloaded at this stage.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param newMessages messages which wasn't processed before;
+     * @return list of accepted messages in mailbox order;
+     * @throws MessagingException if envelope fetch failed;
+     */
+    private List<IncomingMail> filterByWhitelist(MailAccount account, Folder folder, List<Message> newMessages) throws MessagingException {
+        List<IncomingMail> accepted = new ArrayList<>();
+        if (newMessages.isEmpty()) {
+            return accepted;
+        }
+        FetchProfile envelopeProfile = new FetchProfile();
+        envelopeProfile.add(FetchProfile.Item.ENVELOPE);
+        envelopeProfile.add(FetchProfile.Item.SIZE);
+        folder.fetch(newMessages.toArray(new Message[newMessages.size()]), envelopeProfile);
+        
+        Whitelist snapshot = whitelist.get();
+        for (Message currMessage: newMessages) {
+            IncomingMail currMail = acceptMail(currMessage, snapshot);
+            if (currMail != null) {
+                accepted.add(currMail);
+            } else {
+                markProcessed(account, folder, currMessage);
+            }
+        }
+        return accepted;
+    }
+    
+    /**
+     * Check sender of message with whitelist.
+     * @param message message with loaded headers;
+     * @param snapshot current whitelist;
+     * @return accepted mail or null if no sender address is in whitelist;
+     * @throws MessagingException 
+     */
+    protected static IncomingMail acceptMail(Message message, Whitelist snapshot) throws MessagingException {
+        Address[] addresses = message.getFrom();
+        if (addresses != null) {
+            for (Address currAddr: addresses) {
+                if (currAddr instanceof InternetAddress) {
+                    WhitelistRecord passRecord = snapshot.find(((InternetAddress) currAddr).getAddress());
+                    if (passRecord != null) {
+                        return new IncomingMail(message, (InternetAddress) currAddr, passRecord);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * List candidate messages of opened folder.<br>
+     * IMAP server selects them by flags itself: unseen messages in MARK mode 
+     * and not deleted messages in DELETE mode.
+     * @param folder opened inbox folder;
+     * @return messages in mailbox order;
+     * @throws MessagingException 
+     */
+    private Message[] listMessages(Folder folder) throws MessagingException {
+        if (folder instanceof IMAPFolder) {
+            Flags.Flag searchFlag = currentPostAction == POST_ACTION.MARK ? Flags.Flag.SEEN : Flags.Flag.DELETED;
+            return folder.search(new FlagTerm(new Flags(searchFlag), false));
+        }
+        return folder.getMessages();
+    }
+    
+    /**
+     * Check if folder provides persistent message UIDs.
+     * @param folder opened folder;
+     * @return true for POP3 and IMAP folders;
+     */
+    private static boolean hasUids(Folder folder) {
+        return folder instanceof POP3Folder || folder instanceof UIDFolder;
+    }
+    
+    /**
+     * Get persistent UID of message.<br>
+     * IMAP UID is prefixed with UIDVALIDITY, so index stays valid if mailbox was recreated.
+     * @param folder opened folder;
+     * @param message message of folder;
+     * @return UID or null if server didn't provide it;
+     * @throws MessagingException 
+     */
+    private static String uidOf(Folder folder, Message message) throws MessagingException {
+        if (folder instanceof POP3Folder) {
+            return ((POP3Folder) folder).getUID(message);
+        } else if (folder instanceof UIDFolder) {
+            long uid = ((UIDFolder) folder).getUID(message);
+            return uid < 0 ? null : ((UIDFolder) folder).getUIDValidity() + "-" + uid;
+        }
+        return null;
+    }
+    
+    /**
+     * Check message flags in absence of UIDL index.
+     * @param message message to check;
+     * @return false if message should be skipped as already read;
+     * @throws MessagingException 
+     */
+    private boolean isUnseen(Message message) throws MessagingException {
+        return currentPostAction != POST_ACTION.MARK || !message.getFlags().contains(Flags.Flag.SEEN);
+    }
+    
+    /**
+     * Write message UID to release journal: intent record before message 
+     * is added to the system, release record before message will be flagged for deletion.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param message released message;
+     * @param released false for intent record, true for release record;
+     * @throws MessagingException 
+     */
+    private void journalRelease(MailAccount account, Folder folder, Message message, boolean released) throws MessagingException {
+        ReleaseJournal journal = account.journal;
+        if (journal != null && hasUids(folder)) {
+            String uid = uidOf(folder, message);
+            if (uid != null) {
+                try {
+                    if (released) {
+                        journal.add(uid);
+                    } else {
+                        journal.begin(uid);
+                    }
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо записати до журналу випущених листів");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Save message UID to index of processed messages.
+     * @param account polled account;
+     * @param folder opened inbox folder;
+     * @param message processed message;
+     * @throws MessagingException 
+     */
+    private void markProcessed(MailAccount account, Folder folder, Message message) throws MessagingException {
+        UidlIndex uidIndex = account.index;
+        if (uidIndex != null && hasUids(folder)) {
+            String uid = uidOf(folder, message);
+            if (uid != null) {
+                try {
+                    uidIndex.add(uid);
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо записати до індексу оброблених листів");
+                }
+            }
+        }
+    }
+
+    /**
+     * Get type of import module for system calls.<br>
+     * Called from constructor, so overrides should return constant.
+     * @return module type from {@link Utils.RibbonIOModule} annotation;
+     */
+    protected String getModuleType() {
+        return "MAIL";
+    }
+
+    /**
+     * Create cache of released messages: windowed cache of fixed size 
+     * which is saved to import directory.<br>
+     * Called from constructor, so overrides shouldn't use fields of subclass.
+     * @param givenConfig scheme config properties;
+     * @return new duplicate cache;
+     */
+    protected DedupeCache createDedupe(Properties givenConfig) {
+        long dedupeWindow = readPositive(givenConfig, "mail_dedupe_window", 72) * 3600000L;
+        int dedupeCapacity = readPositive(givenConfig, "mail_dedupe_capacity", 100000);
+        int dedupeRecent = readPositive(givenConfig, "mail_dedupe_recent", 10000);
+        try {
+            return new DedupeCache(new java.io.File(IOControl.IMPORT_DIR + "/" + importerPrint + ".dedupe"), dedupeWindow, dedupeCapacity, dedupeRecent);
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо прочитати кеш дублікатів, кеш зберігатиметься лише у пам'яті");
+            try {
+                return new DedupeCache(null, dedupeWindow, dedupeCapacity, dedupeRecent);
+            } catch (IOException memex) {
+                throw new IllegalStateException(memex);
+            }
+        }
+    }
+
+    /**
+     * Check if scheme reads messages from mail server.
+     * @return true for mailbox schemes;
+     */
+    protected boolean usesMailbox() {
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Drop mailbox connections and push watchers; they are opened 
+     * again by next import cycle.
+     */
+    @Override
+    protected void resetState() {
+        stopWatchers();
+        for (MailAccount currAccount: accounts) {
+            currAccount.connection.closeStore();
+        }
+    }
+
+    /**
+     * Stop all threads of scheme and release it's files and connections.<br>
+     * Called when importer thread exits (scheme is stopped or reloaded); 
+     * scheme can't import after shutdown.
+     */
+    protected void shutdown() {
+        stopWatchers();
+        for (ExecutorService currPool: Arrays.asList(accountPool, idleTimer, fetcher, workers, bulkFetcher, bulkWorkers, bulkLane)) {
+            if (currPool != null) {
+                currPool.shutdownNow();
+            }
+        }
+        whitelist.close();
+        if (sender != null) {
+            sender.close();
+        }
+        for (MailAccount currAccount: accounts) {
+            currAccount.connection.closeStore();
+            if (currAccount.index != null) {
+                currAccount.index.close();
+            }
+            if (currAccount.journal != null) {
+                currAccount.journal.close();
+            }
+        }
+        if (dedupe != null) {
+            try {
+                dedupe.save();
+            } catch (IOException ex) {
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо зберегти кеш дублікатів");
+            }
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * Interrupt push watchers of accounts.
+     */
+    private void stopWatchers() {
+        synchronized (watchers) {
+            for (Thread currWatcher: watchers.values()) {
+                currWatcher.interrupt();
+            }
+            watchers.clear();
+        }
+    }
+
+    @Override
+    public void tryRecover() {
+        // Do nothing now.
+    }
+    
+    /**
+     * Read mail with reader of current thread.
+     * @param address whitelisted sender address;
+     * @param message downloaded mail;
+     * @param passRecord whitelist record of sender;
+     * @return system message;
+     * @throws MessagingException
+     * @throws IOException 
+     */
+    protected MessageClasses.Message readMail(InternetAddress address, Message message, WhitelistRecord passRecord) throws MessagingException, IOException {
+        return readers.get().read(address, message, passRecord);
+    }
+    
+    /**
+     * Read positive integer parameter from config.
+     * @param config scheme config;
+     * @param key parameter name;
+     * @param defaultValue value if parameter is absent or broken;
+     * @return parameter value;
+     */
+    protected Integer readPositive(Properties config, String key, Integer defaultValue) {
+        if (config.containsKey(key)) {
+            try {
+                Integer value = Integer.parseInt(config.getProperty(key));
+                if (value > 0) {
+                    return value;
+                }
+            } catch (NumberFormatException nfex) {
+                // Logged below.
+            }
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо встановити параметр " + key + ": " + config.getProperty(key));
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * Push watcher of IMAP account: processes mailbox and waits 
+     * for new mail with IDLE command, so messages are released within seconds.<br>
+     * If server doesn't support IDLE account is polled with short interval.
+     */
+    private class IdleWatcher implements Runnable {
+        
+        /**
+         * Watched account.
+         */
+        private final MailAccount account;
+        
+        /**
+         * Server without IDLE support was already reported.
+         */
+        private boolean idleWarned = false;
+        
+        /**
+         * Default constructor.
+         * @param givenAccount watched account;
+         */
+        IdleWatcher(MailAccount givenAccount) {
+            account = givenAccount;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    pollAccount(account);
+                    if (!waitForMail()) {
+                        Thread.sleep(idlePoll);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Block until server reports change of mailbox.<br>
+         * Returns at once if mail arrived after previous poll had opened mailbox 
+         * and IDLE is refreshed periodically by NOOP command.
+         * @return false if IDLE can't be used and account should be polled after delay;
+         */
+        private boolean waitForMail() {
+            Folder folder = null;
+            ScheduledFuture<?> refresh = null;
+            try {
+                folder = account.connection.openInbox();
+                if (!(folder instanceof IMAPFolder) || !((IMAPStore) folder.getStore()).hasCapability("IDLE")) {
+                    if (!idleWarned) {
+                        IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "сервер не підтримує IDLE, скринька перевірятиметься кожні " + (idlePoll / 1000) + " с");
+                        idleWarned = true;
+                    }
+                    return false;
+                }
+                final IMAPFolder imapFolder = (IMAPFolder) folder;
+                //Mail which arrived after previous poll had opened mailbox won't be reported by IDLE
+                if (account.polledUidNext != -1 && imapFolder.getUIDNext() != account.polledUidNext) {
+                    return true;
+                }
+                refresh = idleTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            imapFolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                                @Override
+                                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                                    protocol.noop();
+                                    return null;
+                                }
+                            });
+                        } catch (MessagingException ex) {
+                            // Dropped connection will be detected by next poll.
+                        }
+                    }
+                }, idleRefresh, TimeUnit.MILLISECONDS);
+                imapFolder.idle(true);
+                return true;
+            } catch (MessagingException ex) {
+                return false;
+            } finally {
+                if (refresh != null) {
+                    refresh.cancel(false);
+                }
+                if (folder != null) {
+                    account.connection.closeInbox(folder, false);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Message which passed header check and waits for body download.
+     */
+    protected static class IncomingMail {
+        
+        /**
+         * Mail message from folder.
+         */
+        public final Message message;
+        
+        /**
+         * Whitelisted sender address.
+         */
+        public final InternetAddress address;
+        
+        /**
+         * Whitelist record for sender.
+         */
+        public final WhitelistRecord record;
+        
+        /**
+         * Default constructor.
+         * @param givenMessage mail message;
+         * @param givenAddress sender address;
+         * @param givenRecord whitelist record;
+         */
+        public IncomingMail(Message givenMessage, InternetAddress givenAddress, WhitelistRecord givenRecord) {
+            message = givenMessage;
+            address = givenAddress;
+            record = givenRecord;
         }
     }
     
     /**
-     * Extended format whitelist record.
+     * Whitelist record; for normal format only address is filled.
      */
-    protected class WhitelistRecord extends CsvElder{
+    protected static class WhitelistRecord extends CsvElder{
         
         /**
          * Address to accept.
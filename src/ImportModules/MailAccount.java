@@ -0,0 +1,156 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+/**
+ * Single mail account polled by import scheme.<br>
+ * Holds account connection, index of processed messages and poll statistics.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailAccount {
+
+    /**
+     * Account name (empty for default account).
+     */
+    public final String name;
+
+    /**
+     * Account store connection.
+     */
+    public final MailConnection connection;
+
+    /**
+     * Index of processed messages (may be null).
+     */
+    public final UidlIndex index;
+
+    /**
+     * Journal of released messages in DELETE mode (may be null).
+     */
+    public final ReleaseJournal journal;
+
+    /**
+     * Adaptive poll schedule of account.
+     */
+    public final PollScheduler scheduler;
+
+    /**
+     * UIDNEXT of IMAP mailbox when last poll batch opened it (-1 if unknown).
+     */
+    public volatile long polledUidNext = -1;
+
+    /**
+     * Count of finished polls.
+     */
+    private long polls = 0;
+
+    /**
+     * Count of failed polls.
+     */
+    private long failures = 0;
+
+    /**
+     * Count of released messages.
+     */
+    private long released = 0;
+
+    /**
+     * Count of skipped duplicates.
+     */
+    private long duplicates = 0;
+
+    /**
+     * Last poll duration in milliseconds.
+     */
+    private long lastLatency = 0;
+
+    /**
+     * Max poll duration in milliseconds.
+     */
+    private long maxLatency = 0;
+
+    /**
+     * Sum of poll durations in milliseconds.
+     */
+    private long totalLatency = 0;
+
+    /**
+     * Default constructor.
+     * @param givenName account name;
+     * @param givenConnection account connection;
+     * @param givenIndex index of processed messages (may be null);
+     * @param givenJournal journal of released messages (may be null);
+     * @param givenScheduler poll schedule of account;
+     */
+    public MailAccount(String givenName, MailConnection givenConnection, UidlIndex givenIndex, ReleaseJournal givenJournal, PollScheduler givenScheduler) {
+        name = givenName;
+        connection = givenConnection;
+        index = givenIndex;
+        journal = givenJournal;
+        scheduler = givenScheduler;
+    }
+
+    /**
+     * Save result of finished poll.
+     * @param latency poll duration in milliseconds;
+     * @param success poll was finished without errors;
+     */
+    public synchronized void recordPoll(long latency, boolean success) {
+        polls++;
+        if (!success) {
+            failures++;
+        }
+        lastLatency = latency;
+        maxLatency = Math.max(maxLatency, latency);
+        totalLatency += latency;
+    }
+
+    /**
+     * Count released message.
+     */
+    public synchronized void recordRelease() {
+        released++;
+    }
+
+    /**
+     * Count skipped duplicate message.
+     */
+    public synchronized void recordDuplicate() {
+        duplicates++;
+    }
+
+    /**
+     * Get average poll duration.
+     * @return average latency in milliseconds;
+     */
+    public synchronized long getAverageLatency() {
+        return polls == 0 ? 0 : totalLatency / polls;
+    }
+
+    /**
+     * Get short description of account statistics for log.
+     * @return statistics string;
+     */
+    public synchronized String getStats() {
+        return "скринька " + (name.isEmpty() ? "основна" : name) + ": перевірок " + polls + " (невдалих " + failures + "), випущено " + released + " (дублікатів " + duplicates + ")"
+                + ", час перевірки мс: останній " + lastLatency + ", середній " + getAverageLatency() + ", найбільший " + maxLatency
+                + "; " + connection.getStats() + "; " + scheduler.getStats();
+    }
+}
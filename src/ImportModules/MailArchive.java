@@ -0,0 +1,549 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * Mail archive import class: backfill of mbox files and Maildir directories.<br>
+ * Messages pass same whitelist, parse, duplicate check and release path
+ * as mailbox messages. Mbox files are scanned over memory-mapped windows,
+ * Maildir directories are listed in parallel. Position of last released
+ * message is kept in checkpoint, so interrupted import continues where it stopped.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+@Utils.RibbonIOModule(type="MAILARCHIVE", property="IMPORT_MAILARCHIVE", api_version=1)
+public class MailArchive extends Mail {
+
+    /**
+     * Session for message parsing.
+     */
+    private static final Session ARCHIVE_SESSION = Session.getInstance(new Properties());
+
+    /**
+     * Delivery order of Maildir files: by delivery time (leading seconds of name), 
+     * then by unique part. Info part after colon is ignored, since it's changed 
+     * with message flags. Names without delivery time go after all others.
+     */
+    static final Comparator<String> MAILDIR_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String first, String second) {
+            int result = Long.compare(deliveryTime(first), deliveryTime(second));
+            return result != 0 ? result : uniqueName(first).compareTo(uniqueName(second));
+        }
+    };
+
+    /**
+     * Archive files and directories.
+     */
+    private final List<File> sources = new ArrayList<>();
+
+    /**
+     * Checkpoint of released messages.
+     */
+    private ArchiveCheckpoint checkpoint;
+
+    /**
+     * Count of parallel directory listings.
+     */
+    protected Integer walkers = 4;
+
+    /**
+     * Max size of archived message (in bytes).
+     */
+    protected Long maxMessage = 52428800L;
+
+    /**
+     * Count of released messages between checkpoint saves.
+     */
+    protected Integer checkpointInterval = 1000;
+
+    /**
+     * Pool for Maildir directory listing.
+     */
+    private ExecutorService walkerPool;
+
+    /**
+     * Messages waiting for release in archive order.
+     */
+    private final Deque<ArchivedMail> pending = new ArrayDeque<>();
+
+    /**
+     * Size of raw messages waiting for release (in bytes).
+     */
+    private long pendingBytes = 0;
+
+    /**
+     * Count of released messages since last checkpoint save.
+     */
+    private int sinceSave = 0;
+
+    /**
+     * All sources were imported in this run.
+     */
+    private boolean finished = false;
+
+    /**
+     * Default constructor;
+     * @param givenConfig scheme config properties;
+     */
+    public MailArchive(Properties givenConfig) {
+        super(givenConfig);
+
+        if (givenConfig.containsKey("mail_archive_path")) {
+            for (String currPath: givenConfig.getProperty("mail_archive_path").split(",")) {
+                if (!currPath.trim().isEmpty()) {
+                    File source = new File(currPath.trim());
+                    sources.add(source.isAbsolute() ? source : new File(IOControl.IMPORT_DIR, currPath.trim()));
+                }
+            }
+        }
+        if (sources.isEmpty()) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вказано архівів для імпорту!");
+            IOControl.serverWrapper.enableDirtyState(getModuleType(), importerName, importerPrint);
+        }
+
+        walkers = readPositive(givenConfig, "mail_archive_walkers", walkers);
+        maxMessage = readPositive(givenConfig, "mail_archive_max_message", 51200) * 1024L;
+        if (maxMessage > MboxScanner.MAX_MESSAGE) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "параметр mail_archive_max_message обмежено до " + MboxScanner.MAX_MESSAGE / 1024 + " КБ");
+            maxMessage = MboxScanner.MAX_MESSAGE / 1024 * 1024;
+        }
+        checkpointInterval = readPositive(givenConfig, "mail_archive_checkpoint", checkpointInterval);
+        walkerPool = Executors.newFixedThreadPool(walkers, new NamedThreadFactory("mail-" + importerName + "-walk"));
+
+        File checkpointFile = new File(IOControl.IMPORT_DIR + "/" + importerPrint + ".archive");
+        try {
+            checkpoint = new ArchiveCheckpoint(checkpointFile);
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо прочитати позицію імпорту архіву " + checkpointFile.getPath() + ", імпорт почнеться спочатку");
+            try {
+                checkpoint = new ArchiveCheckpoint(null);
+            } catch (IOException memex) {
+                throw new IllegalStateException(memex);
+            }
+        }
+    }
+
+    @Override
+    protected String getModuleType() {
+        return "MAILARCHIVE";
+    }
+
+    /**
+     * Create exact cache: backfill may hold any count of letters, so windowed
+     * cache of mailbox size would take new letters for copies.
+     * @param givenConfig scheme config properties;
+     * @return new exact duplicate cache;
+     */
+    @Override
+    protected DedupeCache createDedupe(Properties givenConfig) {
+        return DedupeCache.exact();
+    }
+
+    @Override
+    protected boolean usesMailbox() {
+        return false;
+    }
+
+    @Override
+    protected void shutdown() {
+        walkerPool.shutdownNow();
+        super.shutdown();
+    }
+
+    @Override
+    protected void doImport() {
+        if (finished) {
+            return;
+        }
+        boolean success = true;
+        try {
+            for (File currSource: sources) {
+                try {
+                    importSource(currSource);
+                } catch (IOException | MessagingException ex) {
+                    success = false;
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 0, "імпорт архіву " + currSource.getPath() + " завершено невдачею");
+                    IOControl.serverWrapper.postException("Імпорт архіву завершено невдачею", ex);
+                }
+            }
+            if (success) {
+                finished = true;
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 2, "архів імпортовано повністю");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pending.clear();
+            pendingBytes = 0;
+            saveCheckpoint();
+            finishImport();
+        }
+    }
+
+    /**
+     * Import single source: mbox file, Maildir or directory with archives.
+     * @param source archive file or directory;
+     * @throws IOException if archive can't be read;
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void importSource(File source) throws IOException, MessagingException, InterruptedException {
+        if (source.isFile()) {
+            importMbox(source);
+        } else if (new File(source, "cur").isDirectory() || new File(source, "new").isDirectory()) {
+            importMaildir(source);
+        } else if (source.isDirectory()) {
+            File[] children = source.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File currChild: children) {
+                    if (!currChild.getName().startsWith(".")) {
+                        importSource(currChild);
+                    }
+                }
+            }
+        } else {
+            throw new IOException("Archive not found: " + source.getPath());
+        }
+    }
+
+    /**
+     * Import messages of mbox file starting from checkpoint offset.
+     * @param mbox mbox file;
+     * @throws IOException if file can't be read;
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void importMbox(File mbox) throws IOException, MessagingException, InterruptedException {
+        long offset = checkpoint.getOffset(mbox);
+        if (offset >= mbox.length()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try (MboxScanner scanner = new MboxScanner(mbox, offset)) {
+            while (scanner.next()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                if (scanner.getMessageSize() > maxMessage) {
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "пропущено завеликого листа у " + mbox.getName() + " (" + scanner.getMessageSize() / 1024 + " КБ)");
+                    enqueue(null, mbox, scanner.getNextOffset(), null);
+                    continue;
+                }
+                enqueue(scanner.readMessage(), mbox, scanner.getNextOffset(), null);
+            }
+        }
+        flushPending();
+        metrics.record(ImportMetrics.PHASE.LIST, start);
+    }
+
+    /**
+     * Import messages of Maildir and it's subfolders; <code>cur</code> and
+     * <code>new</code> directories are listed in parallel, files are released
+     * in order of names (Maildir names start with delivery time).
+     * @param maildir Maildir root;
+     * @throws IOException if directory can't be read;
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void importMaildir(File maildir) throws IOException, MessagingException, InterruptedException {
+        List<File> dirs = new ArrayList<>();
+        List<File> folders = new ArrayList<>();
+        folders.add(maildir);
+        File[] subfolders = maildir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(".") && !file.getName().equals(".") && !file.getName().equals("..");
+            }
+        });
+        if (subfolders != null) {
+            Arrays.sort(subfolders);
+            folders.addAll(Arrays.asList(subfolders));
+        }
+        for (File currFolder: folders) {
+            dirs.add(new File(currFolder, "cur"));
+            dirs.add(new File(currFolder, "new"));
+        }
+
+        List<Future<String[]>> listings = new ArrayList<>(dirs.size());
+        for (final File currDir: dirs) {
+            final String lastName = checkpoint.getLastName(currDir);
+            listings.add(walkerPool.submit(new Callable<String[]>() {
+                @Override
+                public String[] call() throws Exception {
+                    return listNew(currDir, lastName);
+                }
+            }));
+        }
+
+        try {
+            for (int index = 0; index < dirs.size(); index++) {
+                File currDir = dirs.get(index);
+                for (String currName: listings.get(index).get()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException();
+                    }
+                    File currFile = new File(currDir, currName);
+                    if (currFile.length() > maxMessage) {
+                        IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "пропущено завеликого листа " + currFile.getPath() + " (" + currFile.length() / 1024 + " КБ)");
+                        enqueue(null, currDir, -1, currName);
+                        continue;
+                    }
+                    enqueue(Files.readAllBytes(currFile.toPath()), currDir, -1, currName);
+                }
+                flushPending();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<String[]> currListing: listings) {
+                currListing.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * List message files of Maildir directory which are after checkpoint.
+     * @param dir <code>cur</code> or <code>new</code> directory;
+     * @param lastName name of last released file (may be null);
+     * @return file names in delivery order;
+     * @throws IOException if directory can't be listed;
+     */
+    static String[] listNew(File dir, String lastName) throws IOException {
+        if (!dir.isDirectory()) {
+            return new String[0];
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Unable to list " + dir.getPath());
+        }
+        List<String> newNames = new ArrayList<>(names.length);
+        for (String currName: names) {
+            if (!currName.startsWith(".") && (lastName == null || MAILDIR_ORDER.compare(currName, lastName) > 0)) {
+                newNames.add(currName);
+            }
+        }
+        String[] result = newNames.toArray(new String[newNames.size()]);
+        Arrays.sort(result, MAILDIR_ORDER);
+        return result;
+    }
+
+    /**
+     * Get delivery time of Maildir file.
+     * @param name file name;
+     * @return seconds from leading digits of name or Long.MAX_VALUE if there are no digits;
+     */
+    private static long deliveryTime(String name) {
+        int end = 0;
+        while (end < name.length() && end < 18 && Character.isDigit(name.charAt(end))) {
+            end++;
+        }
+        return end == 0 ? Long.MAX_VALUE : Long.parseLong(name.substring(0, end));
+    }
+
+    /**
+     * Get Maildir file name without info part.
+     * @param name file name;
+     * @return name before colon;
+     */
+    private static String uniqueName(String name) {
+        int infoStart = name.indexOf(':');
+        return infoStart < 0 ? name : name.substring(0, infoStart);
+    }
+
+    /**
+     * Check message sender and submit message to parse workers,
+     * release oldest messages if queue is full.
+     * @param raw raw message (null if message is skipped);
+     * @param source mbox file or Maildir directory;
+     * @param offset mbox offset of next message;
+     * @param name Maildir file name;
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void enqueue(byte[] raw, File source, long offset, String name) throws MessagingException, InterruptedException {
+        IncomingMail currMail = null;
+        Future<MessageClasses.Message> parsed = null;
+        if (raw != null) {
+            metrics.addSeen(1);
+            metrics.addBytes(raw.length);
+            MimeMessage message = new MimeMessage(ARCHIVE_SESSION, new SharedByteArrayInputStream(raw));
+            currMail = acceptMail(message, whitelist.get());
+            metrics.addChecked(currMail != null ? 1 : 0, currMail != null ? 0 : 1);
+            if (currMail != null) {
+                final IncomingMail parseMail = currMail;
+                parsed = workers.submit(new Callable<MessageClasses.Message>() {
+                    @Override
+                    public MessageClasses.Message call() throws Exception {
+                        long start = System.nanoTime();
+                        MessageClasses.Message result = readMail(parseMail.address, parseMail.message, parseMail.record);
+                        metrics.record(ImportMetrics.PHASE.PARSE, start);
+                        return result;
+                    }
+                });
+            }
+        }
+        long heldBytes = parsed == null ? 0 : raw.length;
+        pending.add(new ArchivedMail(currMail, parsed, source, offset, name, heldBytes));
+        pendingBytes += heldBytes;
+        //Keep raw messages in heap within count limit and within size of one max message
+        while (pending.size() > pipelineQueue || (pendingBytes > maxMessage && pending.size() > 1)) {
+            releaseNext();
+        }
+    }
+
+    /**
+     * Release all pending messages.
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void flushPending() throws MessagingException, InterruptedException {
+        while (!pending.isEmpty()) {
+            releaseNext();
+        }
+    }
+
+    /**
+     * Release oldest pending message and move checkpoint past it.
+     * @throws MessagingException if message can't be released;
+     * @throws InterruptedException if import thread was interrupted;
+     */
+    private void releaseNext() throws MessagingException, InterruptedException {
+        ArchivedMail currArchived = pending.peek();
+        if (currArchived.parsed != null) {
+            try {
+                MessageClasses.Message mailMessage = currArchived.parsed.get();
+                long start = System.nanoTime();
+                if (mailMessage.CONTENT != null) {
+                    finishRelease(publishMail(currArchived.mail.message, mailMessage), currArchived.mail.address, mailMessage);
+                } else {
+                    metrics.addFailed();
+                    IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вдалося відділити зміст повідомлення: " + mailMessage.HEADER);
+                }
+                metrics.record(ImportMetrics.PHASE.RELEASE, start);
+            } catch (ExecutionException ex) {
+                metrics.addFailed();
+                IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "не вдалося прочитати поштового листа від " + currArchived.mail.address.getAddress());
+                IOControl.serverWrapper.postException("Не вдалося прочитати поштового листа", ex.getCause());
+            }
+        }
+        pending.poll();
+        pendingBytes -= currArchived.size;
+        if (currArchived.name == null) {
+            checkpoint.setOffset(currArchived.source, currArchived.offset);
+        } else {
+            checkpoint.setLastName(currArchived.source, currArchived.name);
+        }
+        if (++sinceSave >= checkpointInterval) {
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * Save checkpoint to disk.
+     */
+    private void saveCheckpoint() {
+        sinceSave = 0;
+        try {
+            checkpoint.save();
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(IOControl.IMPORT_LOGID + ":" + importerName, 1, "неможливо зберегти позицію імпорту архіву");
+        }
+    }
+
+    /**
+     * Archived message waiting for release.
+     */
+    private static class ArchivedMail {
+
+        /**
+         * Accepted mail (null if message is skipped).
+         */
+        private final IncomingMail mail;
+
+        /**
+         * Parse result (null if message is skipped).
+         */
+        private final Future<MessageClasses.Message> parsed;
+
+        /**
+         * Mbox file or Maildir directory.
+         */
+        private final File source;
+
+        /**
+         * Mbox offset of next message.
+         */
+        private final long offset;
+
+        /**
+         * Maildir file name (null for mbox).
+         */
+        private final String name;
+
+        /**
+         * Size of raw message held for parsing in bytes.
+         */
+        private final long size;
+
+        /**
+         * Default constructor.
+         * @param givenMail accepted mail;
+         * @param givenParsed parse result;
+         * @param givenSource mbox file or Maildir directory;
+         * @param givenOffset mbox offset of next message;
+         * @param givenName Maildir file name;
+         * @param givenSize size of raw message held for parsing in bytes;
+         */
+        ArchivedMail(IncomingMail givenMail, Future<MessageClasses.Message> givenParsed, File givenSource, long givenOffset, String givenName, long givenSize) {
+            mail = givenMail;
+            parsed = givenParsed;
+            source = givenSource;
+            offset = givenOffset;
+            name = givenName;
+            size = givenSize;
+        }
+    }
+}
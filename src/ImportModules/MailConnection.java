@@ -0,0 +1,462 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import com.sun.mail.util.MailSSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Long-lived mail store connection manager.<br>
+ * Keeps session, socket factory and store between polls,
+ * reconnects with growing delay when store was dropped.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailConnection {
+
+    /**
+     * Initial reconnect delay in milliseconds.
+     */
+    private static final long INITIAL_BACKOFF = 5000;
+
+    /**
+     * Mail session for this connection.
+     */
+    private final Session session;
+
+    /**
+     * Store protocol name.
+     */
+    private final String protocol;
+
+    /**
+     * Mail server address.
+     */
+    private final String host;
+
+    /**
+     * Mail server port (-1 for protocol default).
+     */
+    private final int port;
+
+    /**
+     * User login.
+     */
+    private final String login;
+
+    /**
+     * User password.
+     */
+    private final String password;
+
+    /**
+     * Max reconnect delay in milliseconds.
+     */
+    private final long maxBackoff;
+
+    /**
+     * Current store or null if not connected.
+     */
+    private Store store;
+
+    /**
+     * Current reconnect delay.
+     */
+    private long currentBackoff = INITIAL_BACKOFF;
+
+    /**
+     * Time before which reconnect will not be attempted.
+     */
+    private long nextAttemptTime = 0;
+
+    /**
+     * Count of full store connects (with login).
+     */
+    private final AtomicLong connects = new AtomicLong();
+
+    /**
+     * Count of protocol connections (TCP sockets) opened to server.
+     */
+    private final AtomicLong sockets = new AtomicLong();
+
+    /**
+     * Count of polls which opened inbox without new protocol connection.
+     */
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Count of full TLS handshakes.
+     */
+    private final AtomicLong fullHandshakes = new AtomicLong();
+
+    /**
+     * Count of abbreviated (resumed) TLS handshakes.
+     */
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    /**
+     * Default constructor.
+     * @param givenProtocol store protocol (pop3, pop3s, imap or imaps);
+     * @param givenHost server address;
+     * @param givenPort server port or -1;
+     * @param givenLogin user login;
+     * @param givenPassword user password;
+     * @param startTls upgrade plain connection with STARTTLS command;
+     * @param trustAll trust to all server certificates;
+     * @param debug enable session debug;
+     * @param givenMaxBackoff max reconnect delay in seconds;
+     * @param fileCache keep downloaded messages in temp files instead of heap (POP3 only);
+     * @param fileCacheDir directory for temp files (null for system default);
+     * @throws GeneralSecurityException if SSL socket factory can't be created;
+     */
+    public MailConnection(String givenProtocol, String givenHost, int givenPort, String givenLogin, String givenPassword,
+            boolean startTls, boolean trustAll, boolean debug, int givenMaxBackoff, boolean fileCache, String fileCacheDir) throws GeneralSecurityException {
+        protocol = givenProtocol;
+        host = givenHost;
+        port = givenPort;
+        login = givenLogin;
+        password = givenPassword;
+        maxBackoff = givenMaxBackoff * 1000L;
+
+        final Properties mailInit = new Properties();
+        mailInit.put("mail.store.protocol", protocol);
+        if (protocol.startsWith("imap")) {
+            //Don't set \Seen flag on body download, only after release
+            mailInit.put("mail." + protocol + ".peek", "true");
+        } else if (fileCache) {
+            mailInit.put("mail." + protocol + ".filecache.enable", "true");
+            if (fileCacheDir != null) {
+                mailInit.put("mail." + protocol + ".filecache.dir", fileCacheDir);
+            }
+        }
+        if (startTls) {
+            mailInit.put("mail." + protocol + ".starttls.enable", "true");
+            mailInit.put("mail." + protocol + ".starttls.required", "true");
+        }
+        if (!protocol.endsWith("s")) {
+            mailInit.put("mail." + protocol + ".socketFactory", new CountingPlainFactory());
+        }
+        if (protocol.endsWith("s") || startTls) {
+            MailSSLSocketFactory socketFactory = new MailSSLSocketFactory();
+            socketFactory.setTrustAllHosts(trustAll);
+            mailInit.put("mail." + protocol + ".ssl.socketFactory", new CountingSocketFactory(socketFactory));
+        }
+        session = Session.getInstance(mailInit);
+        session.setDebug(debug);
+    }
+
+    /**
+     * Open INBOX folder for read and write, connecting store if necessary.<br>
+     * If store was dropped by server it will be reconnected once. 
+     * Poll counts as reuse only if no new protocol connection was opened 
+     * (POP3 opens new connection for every folder open).
+     * @return opened folder;
+     * @throws MessagingException if connection failed or reconnect delay isn't expired;
+     */
+    public synchronized Folder openInbox() throws MessagingException {
+        long socketsBefore = sockets.get();
+        boolean reused = ensureStore();
+        Folder folder;
+        try {
+            folder = openFolder();
+        } catch (MessagingException ex) {
+            if (!reused) {
+                throw ex;
+            }
+            closeStore();
+            ensureStore();
+            folder = openFolder();
+        }
+        if (sockets.get() == socketsBefore) {
+            reuses.incrementAndGet();
+        }
+        return folder;
+    }
+
+    /**
+     * Close folder after poll and keep store for next one.
+     * @param folder opened folder;
+     * @param expunge remove deleted messages;
+     * @return true if folder was closed normally (deleted messages are removed), false if it was dropped;
+     */
+    public synchronized boolean closeInbox(Folder folder, boolean expunge) {
+        if (folder == null || !folder.isOpen()) {
+            return false;
+        }
+        try {
+            folder.close(expunge);
+            return true;
+        } catch (MessagingException ex) {
+            closeStore();
+            return false;
+        }
+    }
+
+    /**
+     * Close store and forget it.
+     */
+    public synchronized void closeStore() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException ex) {
+                // Connection is dropped anyway.
+            }
+            store = null;
+        }
+    }
+
+    /**
+     * Get count of full store connects.
+     * @return connects count;
+     */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * Get count of protocol connections opened to server.
+     * @return connections count;
+     */
+    public long getSockets() {
+        return sockets.get();
+    }
+
+    /**
+     * Get count of polls which reused open protocol connection.
+     * @return reuses count;
+     */
+    public long getReuses() {
+        return reuses.get();
+    }
+
+    /**
+     * Get count of full TLS handshakes.
+     * @return handshakes count;
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Get count of resumed TLS handshakes.
+     * @return handshakes count;
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Get short description of connection counters for log.
+     * @return counters string;
+     */
+    public String getStats() {
+        return "входів: " + connects.get() + ", з'єднань: " + sockets.get() + ", повторних використань: " + reuses.get()
+                + ", TLS повних: " + fullHandshakes.get() + ", TLS відновлених: " + resumedHandshakes.get();
+    }
+
+    /**
+     * Make sure store is connected.
+     * @return true if existing store object was kept;
+     * @throws MessagingException if connect failed or reconnect delay isn't expired;
+     */
+    private boolean ensureStore() throws MessagingException {
+        if (store != null && store.isConnected()) {
+            return true;
+        }
+        closeStore();
+        if (System.currentTimeMillis() < nextAttemptTime) {
+            throw new MessagingException("Очікування перед повторним з'єднанням з " + host);
+        }
+        try {
+            Store newStore = session.getStore(protocol);
+            newStore.connect(host, port, login, password);
+            store = newStore;
+            connects.incrementAndGet();
+            currentBackoff = INITIAL_BACKOFF;
+            nextAttemptTime = 0;
+            return false;
+        } catch (MessagingException ex) {
+            nextAttemptTime = System.currentTimeMillis() + currentBackoff;
+            currentBackoff = Math.min(currentBackoff * 2, Math.max(maxBackoff, INITIAL_BACKOFF));
+            throw ex;
+        }
+    }
+
+    /**
+     * Open INBOX from current store.
+     * @return opened folder;
+     * @throws MessagingException
+     */
+    private Folder openFolder() throws MessagingException {
+        Folder folder = store.getDefaultFolder().getFolder("INBOX");
+        folder.open(Folder.READ_WRITE);
+        return folder;
+    }
+
+    /**
+     * Plain socket factory which counts opened connections.
+     */
+    private class CountingPlainFactory extends SocketFactory {
+
+        /**
+         * Real socket factory.
+         */
+        private final SocketFactory delegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            sockets.incrementAndGet();
+            return delegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            sockets.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            sockets.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            sockets.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            sockets.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * SSL socket factory which counts opened connections, full and resumed handshakes.<br>
+     * Sockets layered over plain connection by STARTTLS aren't counted as new connections. 
+     * Single instance is kept for connection so SSL session cache survives between polls.<br>
+     * Handshake is resumed if its session was created before socket: session id
+     * can't be used for that, since TLS 1.3 resumption gives new id to the session
+     * while creation time is kept from the original one.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+
+        /**
+         * Real socket factory.
+         */
+        private final SSLSocketFactory delegate;
+
+        /**
+         * Default constructor.
+         * @param givenDelegate real socket factory;
+         */
+        CountingSocketFactory(SSLSocketFactory givenDelegate) {
+            delegate = givenDelegate;
+        }
+
+        /**
+         * Attach handshake listener to socket.
+         * @param socket created socket;
+         * @return same socket;
+         */
+        private Socket watch(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long openTime = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        if (event.getSession().getCreationTime() < openTime) {
+                            resumedHandshakes.incrementAndGet();
+                        } else {
+                            fullHandshakes.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            sockets.incrementAndGet();
+            return watch(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            //JavaMail opens plain socket for SSL protocols by itself and layers SSL over it
+            if (protocol.endsWith("s")) {
+                sockets.incrementAndGet();
+            }
+            return watch(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            sockets.incrementAndGet();
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            sockets.incrementAndGet();
+            return watch(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            sockets.incrementAndGet();
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            sockets.incrementAndGet();
+            return watch(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.InternetAddress;
+import org.jsoup.Jsoup;
+
+/**
+ * Mail message reader: converts downloaded mail to system message.<br>
+ * Reader keeps reusable decoding buffers, so each parse thread
+ * should use it's own instance.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailReader {
+
+    /**
+     * Placeholder content of multipart mail without text part.
+     */
+    static final String EMPTY_CONTENT = "EMPTY MESSAGE";
+
+    /**
+     * Log id of import scheme.
+     */
+    private final String logId;
+
+    /**
+     * Html conversion mode.
+     */
+    private final Mail.HTML_MODE htmlMode;
+
+    /**
+     * Directory for messages without whitelist record.
+     */
+    private final String fallbackDir;
+
+    /**
+     * Tags of messages without route.
+     */
+    private final String[] defaultTags;
+
+    /**
+     * Language of messages without route.
+     */
+    private final String defaultLang;
+
+    /**
+     * Decoder for text bodies.
+     */
+    private final BodyDecoder decoder;
+
+    /**
+     * Converter for html bodies.
+     */
+    private final HtmlTextExtractor htmlExtractor = new HtmlTextExtractor();
+
+    /**
+     * Store for attachments (null if attachments are dropped).
+     */
+    private final AttachmentStore attachments;
+
+    /**
+     * Router of message directives (null if directives aren't read).
+     */
+    private final DirectiveRouter router;
+
+    /**
+     * Default constructor.
+     * @param givenLogId log id of import scheme;
+     * @param givenMaxBody max count of chars in message content;
+     * @param givenCharset charset for parts without charset parameter;
+     * @param givenHtmlMode html conversion mode;
+     * @param givenFallbackDir directory for messages without whitelist record;
+     * @param givenDefaultTags tags of messages without route;
+     * @param givenDefaultLang language of messages without route;
+     * @param givenAttachments store for attachments (may be null);
+     * @param givenRouter router of message directives (may be null);
+     */
+    public MailReader(String givenLogId, int givenMaxBody, Charset givenCharset, Mail.HTML_MODE givenHtmlMode, String givenFallbackDir, 
+            String[] givenDefaultTags, String givenDefaultLang, AttachmentStore givenAttachments, DirectiveRouter givenRouter) {
+        logId = givenLogId;
+        decoder = new BodyDecoder(givenMaxBody, givenCharset);
+        htmlMode = givenHtmlMode;
+        fallbackDir = givenFallbackDir;
+        defaultTags = givenDefaultTags;
+        defaultLang = givenDefaultLang;
+        attachments = givenAttachments;
+        router = givenRouter;
+    }
+
+    /**
+     * Read mail and build system message.
+     * @param address whitelisted sender address;
+     * @param message downloaded mail;
+     * @param passRecord whitelist record of sender;
+     * @return system message (with null content if text can't be extracted);
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public MessageClasses.Message read(InternetAddress address, Message message, Mail.WhitelistRecord passRecord) throws MessagingException, IOException {
+        MessageClasses.Message newMessage = new MessageClasses.Message();
+        newMessage.HEADER = message.getSubject();
+        newMessage.AUTHOR = "root";
+        newMessage.TAGS = defaultTags.clone();
+        newMessage.LANG = defaultLang;
+        newMessage.ORIG_INDEX = "-1";
+
+        Part textPart = MimeWalker.findTextPart(message);
+        if (textPart == null) {
+            if (message.isMimeType("multipart/*")) {
+                newMessage.CONTENT = EMPTY_CONTENT;
+            }
+        } else if (textPart.isMimeType("text/html")) {
+            newMessage.CONTENT = decodeHtml(textPart);
+        } else {
+            newMessage.CONTENT = decodeText(textPart);
+        }
+        if (attachments != null && newMessage.CONTENT != null) {
+            storeAttachments(message, textPart, newMessage);
+        }
+
+        if (passRecord != null && passRecord.COPYRIGHT != null) {
+            newMessage.setCopyright("root", passRecord.COPYRIGHT);
+        } else {
+            newMessage.setCopyright("root", address.getPersonal());
+        }
+        DirectiveRouter.Route route = router != null ? router.route(newMessage.HEADER, newMessage.CONTENT) : null;
+        if (route != null && route.getDirs() != null) {
+            newMessage.DIRS = route.getDirs();
+        } else if (passRecord != null && passRecord.DIRS != null && passRecord.DIRS.length > 0) {
+            newMessage.DIRS = passRecord.DIRS;
+        } else {
+            newMessage.DIRS = new String[] {fallbackDir};
+        }
+        if (route != null && route.getTags() != null) {
+            newMessage.TAGS = route.getTags();
+        }
+        if (route != null && route.getLang() != null) {
+            newMessage.LANG = route.getLang();
+        }
+
+        return newMessage;
+    }
+
+    /**
+     * Save attachments of the mail to store and add references to message properties.<br>
+     * Attachments which exceed size limits are skipped without reading 
+     * if part declares it's size, otherwise reading stops at limit.
+     * @param message downloaded mail;
+     * @param textPart selected text part (may be null);
+     * @param newMessage system message;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void storeAttachments(Message message, Part textPart, MessageClasses.Message newMessage) throws MessagingException, IOException {
+        List<Part> parts = MimeWalker.findAttachments(message, textPart);
+        long budget = attachments.getMaxMessage();
+        for (Part currPart: parts) {
+            AttachmentStore.StoredAttachment stored = null;
+            if (attachments.mayFit(currPart, budget)) {
+                try {
+                    stored = attachments.store(currPart, budget);
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(logId, 1, "неможливо записати вкладення " + AttachmentStore.fileNameOf(currPart) + " до сховища");
+                    continue;
+                }
+            }
+            if (stored == null) {
+                IOControl.serverWrapper.log(logId, 1, "вкладення " + AttachmentStore.fileNameOf(currPart) + " перевищує обмеження розміру і не збережене");
+            } else {
+                budget -= stored.size;
+                newMessage.addProperty("root", "ATTACHMENT", stored.toReference());
+            }
+        }
+    }
+
+    /**
+     * Decode text part and report if it was cut by size limit.
+     * @param part text part of the message;
+     * @return decoded text;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private String decodeText(Part part) throws MessagingException, IOException {
+        String text = decoder.decode(part);
+        if (decoder.isTruncated()) {
+            IOControl.serverWrapper.log(logId, 2, "зміст повідомлення обрізано до " + decoder.getMaxBody() + " символів");
+        }
+        return text;
+    }
+
+    /**
+     * Convert html part to plain text depending on html mode.
+     * @param part html part of the message;
+     * @return plain text;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private String decodeHtml(Part part) throws MessagingException, IOException {
+        if (htmlMode == Mail.HTML_MODE.JSOUP) {
+            return Jsoup.parse(decodeText(part)).text();
+        }
+        String text = htmlExtractor.extract(decoder.openReader(part), decoder.getMaxBody());
+        if (htmlExtractor.isTruncated()) {
+            IOControl.serverWrapper.log(logId, 2, "зміст повідомлення обрізано до " + decoder.getMaxBody() + " символів");
+        }
+        return text;
+    }
+}
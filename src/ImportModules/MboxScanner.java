@@ -0,0 +1,311 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Scanner of mbox file over memory-mapped windows.<br>
+ * Messages are separated by <code>From </code> lines; scanner finds
+ * boundaries in mapped file, so skipped messages never reach heap.
+ * Message which is read is copied to heap once, with mboxrd quoting
+ * (<code>&gt;From </code> lines) removed in place.
+ * Files larger than 2 GB are mapped window by window.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MboxScanner implements Closeable {
+
+    /**
+     * Size of mapped window.
+     */
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Max size of message which can be read to array.
+     */
+    public static final long MAX_MESSAGE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Message separator at line start.
+     */
+    private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+    /**
+     * Opened mbox file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Channel of mbox file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Size of file at scanner creation.
+     */
+    private final long size;
+
+    /**
+     * Current mapped window.
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * Offset of current window in file.
+     */
+    private long windowStart = 0;
+
+    /**
+     * Offset of next message separator.
+     */
+    private long position;
+
+    /**
+     * Start of current message (after separator line).
+     */
+    private long messageStart;
+
+    /**
+     * End of current message (before next separator).
+     */
+    private long messageEnd;
+
+    /**
+     * Default constructor.
+     * @param mboxFile mbox file;
+     * @param offset offset to start from (start of separator line or 0);
+     * @throws IOException if file can't be opened;
+     */
+    public MboxScanner(File mboxFile, long offset) throws IOException {
+        file = new RandomAccessFile(mboxFile, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        position = Math.min(offset, size);
+    }
+
+    /**
+     * Move to next message.
+     * @return false if there are no more messages;
+     * @throws IOException if file can't be mapped;
+     */
+    public boolean next() throws IOException {
+        long separator = findSeparator(position);
+        if (separator >= size) {
+            position = size;
+            return false;
+        }
+        messageStart = findLineEnd(separator);
+        position = findSeparator(messageStart);
+        messageEnd = position;
+        if (messageEnd < size && messageEnd > messageStart && byteAt(messageEnd - 1) == '\n') {
+            messageEnd--;
+            if (messageEnd > messageStart && byteAt(messageEnd - 1) == '\r') {
+                messageEnd--;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get size of current message.
+     * @return size in bytes;
+     */
+    public long getMessageSize() {
+        return messageEnd - messageStart;
+    }
+
+    /**
+     * Get offset of message after current one.
+     * @return byte offset for checkpoint;
+     */
+    public long getNextOffset() {
+        return position;
+    }
+
+    /**
+     * Copy current message without mboxrd quoting.
+     * @return raw message bytes;
+     * @throws IOException if file can't be mapped or message is larger than {@link #MAX_MESSAGE};
+     */
+    public byte[] readMessage() throws IOException {
+        long length = messageEnd - messageStart;
+        if (length > MAX_MESSAGE) {
+            throw new IOException("Message at " + messageStart + " is too large: " + length);
+        }
+        byte[] result = new byte[(int) length];
+        int copied = 0;
+        long pos = messageStart;
+        while (pos < messageEnd) {
+            map(pos);
+            int index = (int) (pos - windowStart);
+            int count = (int) Math.min(window.limit() - index, messageEnd - pos);
+            ByteBuffer slice = window.duplicate();
+            slice.position(index);
+            slice.get(result, copied, count);
+            copied += count;
+            pos += count;
+        }
+        int unquoted = unquote(result);
+        return unquoted == result.length ? result : Arrays.copyOf(result, unquoted);
+    }
+
+    /**
+     * Remove one quote char from quoted separator lines (<code>&gt;+From </code>) in place.
+     * @param data message bytes;
+     * @return length of unquoted message;
+     */
+    private static int unquote(byte[] data) {
+        int length = 0;
+        boolean lineStart = true;
+        for (int index = 0; index < data.length; index++) {
+            byte currByte = data[index];
+            if (lineStart && currByte == '>' && isQuotedFrom(data, index)) {
+                lineStart = false;
+                continue;
+            }
+            data[length++] = currByte;
+            lineStart = currByte == '\n';
+        }
+        return length;
+    }
+
+    /**
+     * Check if line at offset is quoted separator.
+     * @param data message bytes;
+     * @param offset line start;
+     * @return true if one quote char should be removed;
+     */
+    private static boolean isQuotedFrom(byte[] data, int offset) {
+        int pos = offset;
+        while (pos < data.length && data[pos] == '>') {
+            pos++;
+        }
+        if (pos + FROM.length > data.length) {
+            return false;
+        }
+        for (int index = 0; index < FROM.length; index++) {
+            if (data[pos + index] != FROM[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find separator line at or after offset.
+     * @param offset offset to search from;
+     * @return offset of separator or file size if there is no more separators;
+     * @throws IOException
+     */
+    private long findSeparator(long offset) throws IOException {
+        if ((offset == 0 || byteAt(offset - 1) == '\n') && isSeparator(offset)) {
+            return offset;
+        }
+        long pos = offset;
+        while (pos < size) {
+            map(pos);
+            int limit = window.limit();
+            int index = (int) (pos - windowStart);
+            while (index < limit && window.get(index) != '\n') {
+                index++;
+            }
+            if (index == limit) {
+                pos = windowStart + limit;
+                continue;
+            }
+            long lineStart = windowStart + index + 1;
+            if (isSeparator(lineStart)) {
+                return lineStart;
+            }
+            pos = lineStart;
+        }
+        return size;
+    }
+
+    /**
+     * Find start of next line.
+     * @param offset offset within line;
+     * @return offset after line end or file size;
+     * @throws IOException
+     */
+    private long findLineEnd(long offset) throws IOException {
+        long pos = offset;
+        while (pos < size) {
+            if (byteAt(pos++) == '\n') {
+                return pos;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check if line at offset is message separator.
+     * @param offset line start;
+     * @return true for <code>From </code> line;
+     * @throws IOException
+     */
+    private boolean isSeparator(long offset) throws IOException {
+        if (offset + FROM.length > size) {
+            return false;
+        }
+        for (int index = 0; index < FROM.length; index++) {
+            if (byteAt(offset + index) != FROM[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read byte of file.
+     * @param offset byte offset;
+     * @return byte value;
+     * @throws IOException
+     */
+    private byte byteAt(long offset) throws IOException {
+        map(offset);
+        return window.get((int) (offset - windowStart));
+    }
+
+    /**
+     * Map window which contains offset.
+     * @param offset byte offset;
+     * @throws IOException
+     */
+    private void map(long offset) throws IOException {
+        if (window == null || offset < windowStart || offset >= windowStart + window.limit()) {
+            windowStart = offset / WINDOW_SIZE * WINDOW_SIZE;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
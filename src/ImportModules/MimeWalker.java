@@ -0,0 +1,191 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+/**
+ * Walker of MIME part tree which searches best text part of the message.<br>
+ * Multipart content is parsed lazily by JavaMail over shared stream,
+ * so walker doesn't copy part contents and decodes nothing itself.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class MimeWalker {
+
+    /**
+     * Rank of inline plain text part (best possible).
+     */
+    private static final int RANK_PLAIN = 0;
+
+    /**
+     * Rank of inline html part.
+     */
+    private static final int RANK_HTML = 1;
+
+    /**
+     * Rank shift for parts which are attachments.
+     */
+    private static final int RANK_ATTACHMENT = 2;
+
+    /**
+     * Rank of non-text part.
+     */
+    private static final int RANK_NONE = Integer.MAX_VALUE;
+
+    /**
+     * Best part found so far.
+     */
+    private Part bestPart;
+
+    /**
+     * Rank of best part.
+     */
+    private int bestRank = RANK_NONE;
+
+    /**
+     * Private constructor, use {@link #findTextPart(javax.mail.Part)}.
+     */
+    private MimeWalker() {
+    }
+
+    /**
+     * Find best text part of the message: plain before html,
+     * inline before attachment, first one in order on equal rank.
+     * @param root message or root part;
+     * @return text part or null if message has no text;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static Part findTextPart(Part root) throws MessagingException, IOException {
+        MimeWalker walker = new MimeWalker();
+        walker.walk(root, false);
+        return walker.bestPart;
+    }
+
+    /**
+     * Find parts which should be stored as attachments: all leaf parts 
+     * except selected text part which are attachments or non-text parts.<br>
+     * Attached messages are kept whole.
+     * @param root message or root part;
+     * @param textPart selected text part (may be null);
+     * @return list of parts in message order;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static List<Part> findAttachments(Part root, Part textPart) throws MessagingException, IOException {
+        List<Part> attachments = new ArrayList<>();
+        collectAttachments(root, textPart, attachments);
+        return attachments;
+    }
+
+    /**
+     * Collect attachments of part tree.
+     * @param part current part;
+     * @param textPart selected text part (may be null);
+     * @param attachments list to add found parts;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private static void collectAttachments(Part part, Part textPart, List<Part> attachments) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart) content;
+                int count = multipart.getCount();
+                for (int index = 0; index < count; index++) {
+                    collectAttachments(multipart.getBodyPart(index), textPart, attachments);
+                }
+            }
+        } else if (part != textPart && (isAttachment(part) || !part.isMimeType("text/*"))) {
+            attachments.add(part);
+        }
+    }
+
+    /**
+     * Check if part is an attachment.
+     * @param part mail part;
+     * @return true if part has attachment disposition or file name;
+     * @throws MessagingException
+     */
+    public static boolean isAttachment(Part part) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+    }
+
+    /**
+     * Walk through part tree.
+     * @param part current part;
+     * @param attached part is inside attachment;
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void walk(Part part, boolean attached) throws MessagingException, IOException {
+        if (bestRank == RANK_PLAIN) {
+            return;
+        }
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
+            if (content instanceof Multipart) {
+                Multipart multipart = (Multipart) content;
+                int count = multipart.getCount();
+                for (int index = 0; index < count && bestRank != RANK_PLAIN; index++) {
+                    walk(multipart.getBodyPart(index), attached);
+                }
+            }
+        } else if (part.isMimeType("message/rfc822")) {
+            Object content = part.getContent();
+            if (content instanceof Part) {
+                walk((Part) content, true);
+            }
+        } else {
+            int rank = rankOf(part, attached);
+            if (rank < bestRank) {
+                bestRank = rank;
+                bestPart = part;
+            }
+        }
+    }
+
+    /**
+     * Get rank of the leaf part.
+     * @param part leaf part;
+     * @param attached part is inside attachment;
+     * @return rank of the part (lower is better);
+     * @throws MessagingException
+     */
+    private static int rankOf(Part part, boolean attached) throws MessagingException {
+        int rank;
+        if (part.isMimeType("text/plain")) {
+            rank = RANK_PLAIN;
+        } else if (part.isMimeType("text/html")) {
+            rank = RANK_HTML;
+        } else {
+            return RANK_NONE;
+        }
+        if (attached || isAttachment(part)) {
+            rank += RANK_ATTACHMENT;
+        }
+        return rank;
+    }
+}
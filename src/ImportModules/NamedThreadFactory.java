@@ -0,0 +1,55 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of named daemon threads for import scheme executors.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    /**
+     * Prefix of thread names.
+     */
+    private final String prefix;
+
+    /**
+     * Counter of created threads.
+     */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Default constructor.
+     * @param givenPrefix prefix of thread names;
+     */
+    public NamedThreadFactory(String givenPrefix) {
+        prefix = givenPrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+        Thread newThread = new Thread(task, prefix + "-" + counter.incrementAndGet());
+        newThread.setDaemon(true);
+        return newThread;
+    }
+}
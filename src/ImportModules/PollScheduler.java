@@ -0,0 +1,136 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+/**
+ * Adaptive poll schedule of single account on top of import timer.<br>
+ * While passes find new mail account is polled again at once (fast drain),
+ * while mailbox stays empty timer ticks are skipped with doubling
+ * interval up to configured ceiling.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class PollScheduler {
+
+    /**
+     * Max count of immediate passes during one timer tick.
+     */
+    private final int drainMax;
+
+    /**
+     * Max poll interval in timer ticks.
+     */
+    private final int backoffMax;
+
+    /**
+     * Count of ticks to skip before next poll.
+     */
+    private int skipLeft = 0;
+
+    /**
+     * Count of empty passes in a row.
+     */
+    private int idleStreak = 0;
+
+    /**
+     * Count of immediate passes during current tick.
+     */
+    private int drainCount = 0;
+
+    /**
+     * Count of new messages found by current pass.
+     */
+    private int passFound = 0;
+
+    /**
+     * Count of skipped ticks.
+     */
+    private long skippedTicks = 0;
+
+    /**
+     * Count of immediate passes.
+     */
+    private long drainPasses = 0;
+
+    /**
+     * Default constructor.
+     * @param givenDrainMax max count of immediate passes during one tick;
+     * @param givenBackoffMax max poll interval in timer ticks;
+     */
+    public PollScheduler(int givenDrainMax, int givenBackoffMax) {
+        drainMax = givenDrainMax;
+        backoffMax = givenBackoffMax;
+    }
+
+    /**
+     * Check on timer tick if account should be polled now.
+     * @return true if poll is due;
+     */
+    public synchronized boolean isDue() {
+        drainCount = 0;
+        if (skipLeft > 0) {
+            skipLeft--;
+            skippedTicks++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count new messages found by current pass.
+     * @param count count of new messages;
+     */
+    public synchronized void recordFound(int count) {
+        passFound += count;
+    }
+
+    /**
+     * Finish pass and plan next one.
+     * @param success pass was finished without errors;
+     * @return true if account should be polled again at once;
+     */
+    public synchronized boolean finishPass(boolean success) {
+        int found = passFound;
+        passFound = 0;
+        if (!success) {
+            return false;
+        }
+        if (found > 0) {
+            idleStreak = 0;
+            skipLeft = 0;
+            if (drainCount < drainMax) {
+                drainCount++;
+                drainPasses++;
+                return true;
+            }
+            return false;
+        }
+        idleStreak = Math.min(idleStreak + 1, 31);
+        skipLeft = (int) Math.min(1L << (idleStreak - 1), backoffMax) - 1;
+        return false;
+    }
+
+    /**
+     * Get short description of schedule for log.
+     * @return schedule string;
+     */
+    public synchronized String getStats() {
+        return "пропущено перевірок: " + skippedTicks + ", додаткових перевірок: " + drainPasses + ", наступна через тактів: " + (skipLeft + 1);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Write-ahead journal of messages released in DELETE mode.<br>
+ * Intent record of message is synced to disk before message is added
+ * to the system, release record is synced after that and before message
+ * is flagged for deletion. If mailbox wasn't expunged (crash or dropped connection)
+ * released messages are deleted on next poll without second release; 
+ * messages with intent record only are unresolved: they might be added 
+ * before crash, so they aren't released again nor deleted.
+ * Release records are cleared after each successful expunge.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ReleaseJournal {
+
+    /**
+     * Journal file.
+     */
+    private final File journalFile;
+
+    /**
+     * Prefix of intent record.
+     */
+    private static final String INTENT_PREFIX = "P\t";
+
+    /**
+     * UIDs released since last expunge.
+     */
+    private final Set<String> released = new HashSet<>();
+
+    /**
+     * UIDs with intent record but without release record.
+     */
+    private final Set<String> pending = new HashSet<>();
+
+    /**
+     * Append stream for journal file.
+     */
+    private FileOutputStream appender;
+
+    /**
+     * Default constructor.
+     * @param givenFile journal file (will be created if missing);
+     * @throws IOException if journal file can't be read or opened for append;
+     */
+    public ReleaseJournal(File givenFile) throws IOException {
+        journalFile = givenFile;
+        if (journalFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.US_ASCII))) {
+                String currentLine;
+                while ((currentLine = reader.readLine()) != null) {
+                    if (currentLine.startsWith(INTENT_PREFIX)) {
+                        pending.add(currentLine.substring(INTENT_PREFIX.length()));
+                    } else if (!currentLine.isEmpty()) {
+                        released.add(currentLine);
+                    }
+                }
+            }
+            pending.removeAll(released);
+        }
+        appender = new FileOutputStream(journalFile, true);
+    }
+
+    /**
+     * Check if message was released but not expunged yet.
+     * @param uid message UID;
+     * @return true if message is in journal;
+     */
+    public synchronized boolean contains(String uid) {
+        return released.contains(uid);
+    }
+
+    /**
+     * Check if message has intent record only (release was interrupted).
+     * @param uid message UID;
+     * @return true if release of message is unresolved;
+     */
+    public synchronized boolean isPending(String uid) {
+        return pending.contains(uid);
+    }
+
+    /**
+     * Check if journal has no records.
+     * @return true if journal is empty;
+     */
+    public synchronized boolean isEmpty() {
+        return released.isEmpty() && pending.isEmpty();
+    }
+
+    /**
+     * Write intent record of message before it's added to the system and sync it to disk.
+     * @param uid message UID;
+     * @throws IOException if write failed;
+     */
+    public synchronized void begin(String uid) throws IOException {
+        if (!released.contains(uid) && pending.add(uid)) {
+            appender.write((INTENT_PREFIX + uid + "\n").getBytes(StandardCharsets.US_ASCII));
+            appender.getFD().sync();
+        }
+    }
+
+    /**
+     * Write UID of released message and sync it to disk.
+     * @param uid message UID;
+     * @throws IOException if write failed;
+     */
+    public synchronized void add(String uid) throws IOException {
+        if (released.add(uid)) {
+            pending.remove(uid);
+            appender.write((uid + "\n").getBytes(StandardCharsets.US_ASCII));
+            appender.getFD().sync();
+        }
+    }
+
+    /**
+     * Forget unresolved messages after they were handled by poll 
+     * (records stay in file until next {@link #clear()}).
+     */
+    public synchronized void dropPending() {
+        pending.clear();
+    }
+
+    /**
+     * Drop release records after successful expunge; unresolved intent records are kept.
+     * @throws IOException if journal file can't be truncated;
+     */
+    public synchronized void clear() throws IOException {
+        if (released.isEmpty()) {
+            return;
+        }
+        appender.getChannel().truncate(0);
+        for (String currUid: pending) {
+            appender.write((INTENT_PREFIX + currUid + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        appender.getFD().sync();
+        released.clear();
+    }
+
+    /**
+     * Close journal file.
+     */
+    public synchronized void close() {
+        try {
+            appender.close();
+        } catch (IOException ex) {
+            // Nothing to do: all records are synced already.
+        }
+    }
+}
@@ -20,20 +20,50 @@
 package ImportModules;
 
 import MessageClasses.Message;
+import Utils.IOControl;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 /**
- * Send report back to incoming address.
+ * Send report back to incoming address.<br>
+ * Reports are written to durable spool and sent by bounded pool of sender 
+ * threads, each thread keeps long-lived SMTP connection and sends pending 
+ * reports in batches within one session. Failed reports are retried 
+ * with exponential backoff.
  * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
  */
 public class ReportSender {
     
+    /**
+     * Time after which idle SMTP connection is closed (in milliseconds).
+     */
+    private static final long IDLE_TIMEOUT = 30000;
+    
+    /**
+     * Time to wait for sender threads on close (in milliseconds).
+     */
+    private static final long CLOSE_TIMEOUT = 10000;
+    
+    /**
+     * Max delay between delivery attempts (in milliseconds).
+     */
+    private static final long MAX_RETRY_DELAY = 3600000;
+    
     /**
      * SMTP session object.
      */
@@ -44,11 +74,51 @@ public class ReportSender {
      */
     private final String fromAddress;
     
+    /**
+     * Log id of import scheme.
+     */
+    private final String logId;
+    
+    /**
+     * Spool of pending reports.
+     */
+    private final ReportSpool spool;
+    
+    /**
+     * Initial delay between delivery attempts (in milliseconds).
+     */
+    private final long retryDelay;
+    
+    /**
+     * Max count of delivery attempts for one report.
+     */
+    private final int retryMax;
+    
+    /**
+     * Max count of reports sent in one batch.
+     */
+    private final int batchSize;
+    
+    /**
+     * Pool of sender threads.
+     */
+    private final ExecutorService senders;
+    
+    /**
+     * Metrics of import scheme.
+     */
+    private final ImportMetrics metrics;
+    
     /**
      * Default constuctor.
      * @param config schema config;
+     * @param givenLogId log id of import scheme;
+     * @param spoolFile file for reports spool;
+     * @param givenMetrics metrics of import scheme;
      */
-    public ReportSender(Properties config) {
+    public ReportSender(Properties config, String givenLogId, File spoolFile, ImportMetrics givenMetrics) {
+        logId = givenLogId;
+        metrics = givenMetrics;
         final Properties mailInit = new Properties();
         mailInit.put("mail.smtp.host", config.getProperty("mail_smtp_address"));
         if (config.getProperty("mail_smtp_con_port") != null) {
@@ -69,30 +139,271 @@ public class ReportSender {
             mailInit.put("mail.password", config.getProperty("mail_smtp_pass"));
             mailInit.put("mail.smtp.auth", "true");
         }
-        exportSession = Session.getDefaultInstance(mailInit, new javax.mail.Authenticator() {
+        exportSession = Session.getInstance(mailInit, new javax.mail.Authenticator() {
                         protected PasswordAuthentication getPasswordAuthentication() {
                                 return new PasswordAuthentication(mailInit.getProperty("mail.user"), mailInit.getProperty("mail.password"));
                         }
                 });
-        exportSession.setDebug(true);
+        exportSession.setDebug("1".equals(config.getProperty("mail_smtp_debug")));
         fromAddress = config.getProperty("mail_from");
+        
+        ReportSpool newSpool;
+        try {
+            newSpool = new ReportSpool(spoolFile);
+            if (newSpool.size() > 0) {
+                IOControl.serverWrapper.log(logId, 3, "відновлено відповідей для надсилання: " + newSpool.size());
+            }
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(logId, 1, "неможливо відкрити чергу відповідей " + spoolFile.getPath() + ", відповіді зберігатимуться лише у пам'яті");
+            try {
+                newSpool = new ReportSpool(null);
+            } catch (IOException memex) {
+                throw new IllegalStateException(memex);
+            }
+        }
+        spool = newSpool;
+        retryDelay = readPositive(config, "mail_smtp_retry_delay", 30) * 1000L;
+        retryMax = readPositive(config, "mail_smtp_retry_max", 20);
+        batchSize = readPositive(config, "mail_smtp_batch", 50);
+        int threads = readPositive(config, "mail_smtp_threads", 1);
+        senders = Executors.newFixedThreadPool(threads, new NamedThreadFactory(logId + "-report"));
+        for (int index = 0; index < threads; index++) {
+            senders.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            });
+        }
     }
     
     /**
-     * Send report to incoming user.
+     * Queue report to incoming user.
      * @param exportedMessage accepted message;
      * @param recipient recipeint address;
+     */
+    public void queueReport(Message exportedMessage, InternetAddress recipient) {
+        try {
+            spool.add(exportedMessage.INDEX, exportedMessage.HEADER, recipient);
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(logId, 1, "неможливо записати відповідь до черги на диску");
+        }
+    }
+    
+    /**
+     * Stop sender threads and close spool.<br>
+     * Each thread finishes current batch and closes it's SMTP connection; 
+     * unsent reports stay in spool file and are sent by next sender instance.
+     */
+    public void close() {
+        senders.shutdownNow();
+        try {
+            if (!senders.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                IOControl.serverWrapper.log(logId, 1, "надсилання відповідей не завершилось вчасно, частину відповідей може бути надіслано повторно");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        spool.close();
+    }
+    
+    /**
+     * Get count of reports waiting for delivery.
+     * @return spool size;
+     */
+    public int getQueueSize() {
+        return spool.size();
+    }
+    
+    /**
+     * Sender thread loop: take ready reports from spool and send them in batches 
+     * through one SMTP connection, close connection when idle.
+     */
+    private void sendLoop() {
+        Transport transport = null;
+        List<ReportSpool.PendingReport> finished = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<ReportSpool.PendingReport> batch = spool.takeBatch(batchSize, IDLE_TIMEOUT);
+                if (batch.isEmpty()) {
+                    transport = closeTransport(transport);
+                    continue;
+                }
+                finished.clear();
+                boolean connected = true;
+                for (ReportSpool.PendingReport currReport: batch) {
+                    if (!connected) {
+                        retry(currReport, finished);
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        boolean fresh = transport == null || !transport.isConnected();
+                        if (fresh) {
+                            transport = openTransport(transport);
+                        }
+                        try {
+                            sendReport(transport, currReport);
+                        } catch (SendFailedException ex) {
+                            throw ex;
+                        } catch (MessagingException ex) {
+                            if (fresh) {
+                                throw ex;
+                            }
+                            //Idle connection was dropped by server: reconnect once
+                            transport = openTransport(transport);
+                            sendReport(transport, currReport);
+                        }
+                        metrics.record(ImportMetrics.PHASE.REPORT, start);
+                        metrics.addReport(true);
+                        finished.add(currReport);
+                    } catch (SendFailedException ex) {
+                        //Rejected by server: connection is still usable for rest of batch
+                        metrics.addReport(false);
+                        if (isPermanent(ex)) {
+                            IOControl.serverWrapper.log(logId, 1, "Сервер відхилив відповідь для " + currReport.recipient.getAddress() + ": " + ex.getMessage());
+                            finished.add(currReport);
+                        } else {
+                            retry(currReport, finished);
+                        }
+                    } catch (MessagingException ex) {
+                        metrics.addReport(false);
+                        transport = closeTransport(transport);
+                        connected = false;
+                        IOControl.serverWrapper.log(logId, 1, "Надсилання відповіді завершилось невдачею, наступна спроба пізніше");
+                        retry(currReport, finished);
+                    } catch (RuntimeException ex) {
+                        //Broken report or config error: sender thread should survive it
+                        metrics.addReport(false);
+                        IOControl.serverWrapper.log(logId, 1, "Надсилання відповіді для " + currReport.recipient.getAddress() + " завершилось помилкою, наступна спроба пізніше");
+                        IOControl.serverWrapper.postException("Надсилання відповіді завершилось помилкою", ex);
+                        retry(currReport, finished);
+                    }
+                }
+                try {
+                    spool.complete(finished);
+                } catch (IOException ex) {
+                    IOControl.serverWrapper.log(logId, 1, "неможливо записати до черги відповідей на диску");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeTransport(transport);
+    }
+    
+    /**
+     * Reschedule failed report with exponential backoff or drop it after max attempts.
+     * @param report failed report;
+     * @param finished list of finished reports to add dropped one;
+     */
+    private void retry(ReportSpool.PendingReport report, List<ReportSpool.PendingReport> finished) {
+        if (report.attempts + 1 >= retryMax) {
+            IOControl.serverWrapper.log(logId, 0, "Надсилання відповіді для " + report.recipient.getAddress() + " завершилось невдачею після " + retryMax + " спроб");
+            finished.add(report);
+            return;
+        }
+        long delay = retryDelay << Math.min(report.attempts, 16);
+        spool.reschedule(report, Math.min(delay, Math.max(MAX_RETRY_DELAY, retryDelay)));
+    }
+    
+    /**
+     * Check if server rejected report for good.<br>
+     * Only 4xx replies are temporary; rejection without reply code 
+     * (invalid address) is permanent as well.
+     * @param ex send exception;
+     * @return true if report shouldn't be retried;
+     */
+    private static boolean isPermanent(SendFailedException ex) {
+        int returnCode = -1;
+        if (ex instanceof SMTPSendFailedException) {
+            returnCode = ((SMTPSendFailedException) ex).getReturnCode();
+        }
+        Exception next = ex.getNextException();
+        while (next != null) {
+            if (next instanceof SMTPAddressFailedException) {
+                returnCode = ((SMTPAddressFailedException) next).getReturnCode();
+            }
+            next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+        }
+        return returnCode < 400 || returnCode >= 500;
+    }
+    
+    /**
+     * Send report through connected transport.
+     * @param transport connected transport;
+     * @param report report to send;
+     * @throws SendFailedException if server rejected report;
+     * @throws MessagingException if send failed;
+     */
+    private void sendReport(Transport transport, ReportSpool.PendingReport report) throws MessagingException {
+        MimeMessage message = buildReport(report);
+        transport.sendMessage(message, message.getAllRecipients());
+    }
+    
+    /**
+     * Open new SMTP connection.
+     * @param oldTransport previous transport to close (may be null);
+     * @return connected transport;
+     * @throws MessagingException if connection failed;
+     */
+    private Transport openTransport(Transport oldTransport) throws MessagingException {
+        closeTransport(oldTransport);
+        Transport transport = exportSession.getTransport("smtp");
+        transport.connect();
+        return transport;
+    }
+    
+    /**
+     * Close SMTP connection quietly.
+     * @param transport transport to close (may be null);
+     * @return always null;
+     */
+    private Transport closeTransport(Transport transport) {
+        if (transport != null && transport.isConnected()) {
+            try {
+                transport.close();
+            } catch (MessagingException ex) {
+                // Connection is dropped anyway.
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Build report mail.
+     * @param report pending report;
+     * @return mail message;
      * @throws MessagingException 
      */
-    public void sendMessageAsMail(Message exportedMessage, InternetAddress recipient) throws MessagingException {
+    private MimeMessage buildReport(ReportSpool.PendingReport report) throws MessagingException {
         MimeMessage message = new MimeMessage(exportSession);
         message.setFrom(new InternetAddress(fromAddress));
-        message.addRecipient(javax.mail.Message.RecipientType.TO, recipient);
+        message.addRecipient(javax.mail.Message.RecipientType.TO, report.recipient);
         message.setHeader("X-Mailer", "Ribbon System ImportMail reporting module");
-        message.setSubject("СТРІЧКА: повідомлення №" + exportedMessage.INDEX + " прийнято до системи");
-        message.setContent("Ваше повідомлення \'" + exportedMessage.HEADER + "\' вдало випущено у систему за усіма напрямками"
-                + "і йому призначено номер " + exportedMessage.INDEX + ".\n\n--\nСистема \'СТРІЧКА\'" , "text/plain; charset=UTF-8");
-        Transport.send(message);
+        message.setSubject("СТРІЧКА: повідомлення №" + report.index + " прийнято до системи", "UTF-8");
+        message.setContent("Ваше повідомлення \'" + report.header + "\' вдало випущено у систему за усіма напрямками"
+                + "і йому призначено номер " + report.index + ".\n\n--\nСистема \'СТРІЧКА\'" , "text/plain; charset=UTF-8");
+        return message;
     }
     
+    /**
+     * Read positive integer parameter from config.
+     * @param config scheme config;
+     * @param key parameter name;
+     * @param defaultValue value if parameter is absent or broken;
+     * @return parameter value;
+     */
+    private int readPositive(Properties config, String key, int defaultValue) {
+        try {
+            int value = Integer.parseInt(config.getProperty(key, String.valueOf(defaultValue)));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException nfex) {
+            // Logged below.
+        }
+        IOControl.serverWrapper.log(logId, 1, "неможливо встановити параметр " + key + ": " + config.getProperty(key));
+        return defaultValue;
+    }
 }
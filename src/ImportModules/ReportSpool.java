@@ -0,0 +1,374 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Durable append-only spool of reports waiting for delivery.<br>
+ * Each queued report is written as <code>A</code> line, each finished
+ * (sent or dropped) report as <code>D</code> line. Pending reports are
+ * restored after restart; finished ones are compacted out of the file.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ReportSpool {
+
+    /**
+     * Minimal count of finished records before spool file will be rewritten.
+     */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    /**
+     * Spool file.
+     */
+    private final File spoolFile;
+
+    /**
+     * Pending reports by id in queue order.
+     */
+    private final Map<Long, PendingReport> pending = new LinkedHashMap<>();
+
+    /**
+     * Id for next report.
+     */
+    private long nextId = 1;
+
+    /**
+     * Count of finished records in spool file.
+     */
+    private int finishedLines = 0;
+
+    /**
+     * Append writer for spool file (null if spool works in memory only).
+     */
+    private Writer appender;
+
+    /**
+     * Default constructor: restore pending reports from file.
+     * @param givenFile spool file (will be created if missing, null for memory-only spool);
+     * @throws IOException if spool file can't be read or written;
+     */
+    public ReportSpool(File givenFile) throws IOException {
+        spoolFile = givenFile;
+        if (spoolFile != null && spoolFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spoolFile), StandardCharsets.UTF_8))) {
+                String currentLine;
+                while ((currentLine = reader.readLine()) != null) {
+                    restore(currentLine);
+                }
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Add report to spool.
+     * @param index index of released message;
+     * @param header header of released message;
+     * @param recipient report recipient;
+     * @throws IOException if report wasn't written to disk (it's still queued in memory);
+     */
+    public synchronized void add(String index, String header, InternetAddress recipient) throws IOException {
+        PendingReport newReport = new PendingReport(nextId++, index, header, recipient);
+        pending.put(newReport.id, newReport);
+        notifyAll();
+        if (appender == null) {
+            return;
+        }
+        appender.write("A\t" + newReport.id + "\t" + escape(recipient.toString()) + "\t" + escape(index) + "\t" + escape(header) + "\n");
+        appender.flush();
+    }
+
+    /**
+     * Take batch of reports which are ready for delivery, waiting if there are none.<br>
+     * Taken reports are hidden from other senders until they are finished or rescheduled.
+     * @param maxSize max size of batch;
+     * @param timeout max wait time in milliseconds;
+     * @return batch of reports (empty if timeout expired);
+     * @throws InterruptedException if sender thread was interrupted;
+     */
+    public synchronized List<PendingReport> takeBatch(int maxSize, long timeout) throws InterruptedException {
+        List<PendingReport> batch = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long nextReady = Long.MAX_VALUE;
+            for (PendingReport currReport: pending.values()) {
+                if (currReport.inFlight) {
+                    continue;
+                }
+                if (currReport.nextAttempt <= now) {
+                    currReport.inFlight = true;
+                    batch.add(currReport);
+                    if (batch.size() == maxSize) {
+                        break;
+                    }
+                } else {
+                    nextReady = Math.min(nextReady, currReport.nextAttempt);
+                }
+            }
+            if (!batch.isEmpty() || now >= deadline) {
+                return batch;
+            }
+            wait(Math.max(1, Math.min(deadline, nextReady) - now));
+        }
+    }
+
+    /**
+     * Remove finished reports from spool.
+     * @param finished sent or dropped reports;
+     * @throws IOException if spool file write failed;
+     */
+    public synchronized void complete(Collection<PendingReport> finished) throws IOException {
+        if (finished.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (PendingReport currReport: finished) {
+            if (pending.remove(currReport.id) != null) {
+                lines.append("D\t").append(currReport.id).append('\n');
+                finishedLines++;
+            }
+        }
+        if (appender == null) {
+            return;
+        }
+        appender.write(lines.toString());
+        appender.flush();
+        if (finishedLines > COMPACT_THRESHOLD && finishedLines > pending.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Return report to spool for later delivery.
+     * @param report failed report;
+     * @param delay delay before next attempt in milliseconds;
+     */
+    public synchronized void reschedule(PendingReport report, long delay) {
+        report.attempts++;
+        report.nextAttempt = System.currentTimeMillis() + delay;
+        report.inFlight = false;
+        notifyAll();
+    }
+
+    /**
+     * Get count of reports waiting for delivery.
+     * @return count of pending reports;
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Close spool file; pending reports stay in file for next spool instance.
+     */
+    public synchronized void close() {
+        if (appender != null) {
+            try {
+                appender.close();
+            } catch (IOException ex) {
+                // Nothing to do: all records are flushed already.
+            }
+            appender = null;
+        }
+    }
+
+    /**
+     * Rewrite spool file with pending reports only.
+     * @throws IOException if rewrite failed;
+     */
+    private void compact() throws IOException {
+        if (spoolFile == null) {
+            return;
+        }
+        if (appender != null) {
+            appender.close();
+        }
+        File tempFile = new File(spoolFile.getPath() + ".tmp");
+        try (FileOutputStream tempStream = new FileOutputStream(tempFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(tempStream, StandardCharsets.UTF_8));
+            for (PendingReport currReport: pending.values()) {
+                writer.write("A\t" + currReport.id + "\t" + escape(currReport.recipient.toString()) + "\t" + escape(currReport.index) + "\t" + escape(currReport.header) + "\n");
+            }
+            writer.flush();
+            tempStream.getFD().sync();
+        }
+        java.nio.file.Files.move(tempFile.toPath(), spoolFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        finishedLines = 0;
+        appender = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spoolFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Restore spool state from file line; broken lines are skipped.
+     * @param line spool file line;
+     */
+    private void restore(String line) {
+        String[] fields = line.split("\t", -1);
+        try {
+            if (fields.length == 5 && fields[0].equals("A")) {
+                long id = Long.parseLong(fields[1]);
+                pending.put(id, new PendingReport(id, unescape(fields[3]), unescape(fields[4]), new InternetAddress(unescape(fields[2]))));
+                nextId = Math.max(nextId, id + 1);
+            } else if (fields.length == 2 && fields[0].equals("D")) {
+                pending.remove(Long.parseLong(fields[1]));
+            }
+        } catch (NumberFormatException | AddressException ex) {
+            // Line was broken by crash during write.
+        }
+    }
+
+    /**
+     * Escape field for spool line.
+     * @param value field value (may be null);
+     * @return escaped value;
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "\\0";
+        }
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int index = 0; index < value.length(); index++) {
+            char ch = value.charAt(index);
+            switch (ch) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(ch);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Restore escaped field.
+     * @param value escaped value;
+     * @return field value (may be null);
+     */
+    private static String unescape(String value) {
+        if (value.equals("\\0")) {
+            return null;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int index = 0; index < value.length(); index++) {
+            char ch = value.charAt(index);
+            if (ch == '\\' && index + 1 < value.length()) {
+                char next = value.charAt(++index);
+                switch (next) {
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    default:
+                        unescaped.append(next);
+                }
+            } else {
+                unescaped.append(ch);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Report waiting for delivery.
+     */
+    public static class PendingReport {
+
+        /**
+         * Spool record id.
+         */
+        public final long id;
+
+        /**
+         * Index of released message.
+         */
+        public final String index;
+
+        /**
+         * Header of released message.
+         */
+        public final String header;
+
+        /**
+         * Report recipient.
+         */
+        public final InternetAddress recipient;
+
+        /**
+         * Count of failed delivery attempts.
+         */
+        public int attempts = 0;
+
+        /**
+         * Time of next delivery attempt.
+         */
+        private long nextAttempt = 0;
+
+        /**
+         * Report is taken by sender.
+         */
+        private boolean inFlight = false;
+
+        /**
+         * Default constructor.
+         * @param givenId spool record id;
+         * @param givenIndex message index;
+         * @param givenHeader message header;
+         * @param givenRecipient report recipient;
+         */
+        PendingReport(long givenId, String givenIndex, String givenHeader, InternetAddress givenRecipient) {
+            id = givenId;
+            index = givenIndex;
+            header = givenHeader;
+            recipient = givenRecipient;
+        }
+    }
+}
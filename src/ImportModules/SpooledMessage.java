@@ -0,0 +1,111 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Message downloaded to temporary file.<br>
+ * Big messages are written to disk while they are fetched and parts are read
+ * from file on demand, so heap holds only headers and structure of message.
+ * File is deleted by {@link #dispose()} after message is parsed.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class SpooledMessage extends MimeMessage {
+
+    /**
+     * Session for message parsing.
+     */
+    private static final Session SPOOL_SESSION = Session.getInstance(new Properties());
+
+    /**
+     * Temporary file with raw message.
+     */
+    private final File spoolFile;
+
+    /**
+     * Shared stream of file.
+     */
+    private final SharedFileInputStream spoolStream;
+
+    /**
+     * Private constructor, use {@link #download(javax.mail.Message, java.io.File)}.
+     * @param givenFile temporary file with raw message;
+     * @param givenStream shared stream of file;
+     * @throws MessagingException if message can't be parsed;
+     */
+    private SpooledMessage(File givenFile, SharedFileInputStream givenStream) throws MessagingException {
+        super(SPOOL_SESSION, givenStream);
+        spoolFile = givenFile;
+        spoolStream = givenStream;
+    }
+
+    /**
+     * Download message to temporary file.
+     * @param message message from folder;
+     * @param dir directory for temporary file (null for system default);
+     * @return message backed by file;
+     * @throws MessagingException if message can't be fetched;
+     * @throws IOException if file can't be written;
+     */
+    public static SpooledMessage download(Message message, File dir) throws MessagingException, IOException {
+        File spoolFile = File.createTempFile("mail", ".eml", dir);
+        SharedFileInputStream spoolStream = null;
+        try {
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(spoolFile))) {
+                message.writeTo(output);
+            }
+            spoolStream = new SharedFileInputStream(spoolFile);
+            return new SpooledMessage(spoolFile, spoolStream);
+        } catch (MessagingException | IOException | RuntimeException ex) {
+            if (spoolStream != null) {
+                spoolStream.close();
+            }
+            if (!spoolFile.delete()) {
+                spoolFile.deleteOnExit();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Close file and delete it.
+     */
+    public void dispose() {
+        try {
+            spoolStream.close();
+        } catch (IOException ex) {
+            // File is deleted anyway.
+        }
+        if (!spoolFile.delete()) {
+            spoolFile.deleteOnExit();
+        }
+    }
+}
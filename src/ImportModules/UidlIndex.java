@@ -0,0 +1,171 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent index of already processed POP3 messages (UIDL values).<br>
+ * File contains one UID per line and only grows by appending;
+ * stale UIDs which disappeared from server are dropped by compaction.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class UidlIndex {
+
+    /**
+     * Minimal count of stale lines before index file will be rewritten.
+     */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    /**
+     * Index file.
+     */
+    private final File indexFile;
+
+    /**
+     * Set of processed UIDs.
+     */
+    private final Set<String> processed = new HashSet<>();
+
+    /**
+     * Count of lines in index file (including stale ones).
+     */
+    private int fileLines = 0;
+
+    /**
+     * Append writer for index file.
+     */
+    private Writer appender;
+
+    /**
+     * Default constructor.
+     * @param givenFile index file (will be created if missing);
+     * @throws IOException if index file can't be read or opened for append;
+     */
+    public UidlIndex(File givenFile) throws IOException {
+        indexFile = givenFile;
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.US_ASCII))) {
+                String currentLine;
+                while ((currentLine = reader.readLine()) != null) {
+                    if (!currentLine.isEmpty()) {
+                        processed.add(currentLine);
+                        fileLines++;
+                    }
+                }
+            }
+        }
+        openAppender();
+    }
+
+    /**
+     * Check if message with such UID was processed already.
+     * @param uid message UID;
+     * @return true if message was processed;
+     */
+    public synchronized boolean contains(String uid) {
+        return processed.contains(uid);
+    }
+
+    /**
+     * Get count of processed UIDs.
+     * @return size of index;
+     */
+    public synchronized int size() {
+        return processed.size();
+    }
+
+    /**
+     * Mark message UID as processed and append it to index file.
+     * @param uid message UID;
+     * @throws IOException if write failed;
+     */
+    public synchronized void add(String uid) throws IOException {
+        if (processed.add(uid)) {
+            appender.write(uid);
+            appender.write('\n');
+            appender.flush();
+            fileLines++;
+        }
+    }
+
+    /**
+     * Drop all UIDs which are not present on server anymore
+     * and rewrite index file if it contains too many stale lines.
+     * @param serverUids UIDs of all messages on server;
+     * @throws IOException if index file rewrite failed;
+     */
+    public synchronized void retain(Collection<String> serverUids) throws IOException {
+        processed.retainAll(serverUids instanceof Set ? serverUids : new HashSet<>(serverUids));
+        int staleLines = fileLines - processed.size();
+        if (staleLines > COMPACT_THRESHOLD && staleLines > processed.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Close index file.
+     */
+    public synchronized void close() {
+        try {
+            appender.close();
+        } catch (IOException ex) {
+            // Nothing to do: all records are flushed already.
+        }
+    }
+
+    /**
+     * Rewrite index file with live UIDs only.
+     * @throws IOException if rewrite failed;
+     */
+    private void compact() throws IOException {
+        appender.close();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.US_ASCII))) {
+            for (String currUid: processed) {
+                writer.write(currUid);
+                writer.write('\n');
+            }
+        }
+        java.nio.file.Files.move(tempFile.toPath(), indexFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        fileLines = processed.size();
+        openAppender();
+    }
+
+    /**
+     * Open index file for appending.
+     * @throws IOException if file can't be opened;
+     */
+    private void openAppender() throws IOException {
+        appender = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.US_ASCII));
+    }
+}
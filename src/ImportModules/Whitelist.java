@@ -0,0 +1,195 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of address whitelist with lookup indexes.<br>
+ * Supports exact addresses and domain rules:
+ * <code>*@agency.example</code> (any address of the domain) and
+ * <code>*@*.agency.example</code> (any address of any subdomain).
+ * Addresses are compared in normalized (trimmed, lower case) form.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class Whitelist {
+
+    /**
+     * Empty whitelist.
+     */
+    public static final Whitelist EMPTY = new Whitelist(new HashMap<String, Mail.WhitelistRecord>(),
+            new HashMap<String, Mail.WhitelistRecord>(), new HashMap<String, Mail.WhitelistRecord>(), 0);
+
+    /**
+     * Exact address index.
+     */
+    private final Map<String, Mail.WhitelistRecord> exact;
+
+    /**
+     * Whole domain index.
+     */
+    private final Map<String, Mail.WhitelistRecord> domains;
+
+    /**
+     * Subdomain suffix index.
+     */
+    private final Map<String, Mail.WhitelistRecord> subdomains;
+
+    /**
+     * Count of skipped broken lines.
+     */
+    private final int skipped;
+
+    /**
+     * Private constructor, use {@link #parse(java.util.Collection, ImportModules.Mail.WHITELIST_FORMAT)}.
+     * @param givenExact exact address index;
+     * @param givenDomains whole domain index;
+     * @param givenSubdomains subdomain suffix index;
+     * @param givenSkipped count of skipped lines;
+     */
+    private Whitelist(Map<String, Mail.WhitelistRecord> givenExact, Map<String, Mail.WhitelistRecord> givenDomains,
+            Map<String, Mail.WhitelistRecord> givenSubdomains, int givenSkipped) {
+        exact = givenExact;
+        domains = givenDomains;
+        subdomains = givenSubdomains;
+        skipped = givenSkipped;
+    }
+
+    /**
+     * Build whitelist from file lines.
+     * @param lines whitelist file lines;
+     * @param format whitelist format;
+     * @return new whitelist;
+     */
+    public static Whitelist parse(Collection<String> lines, Mail.WHITELIST_FORMAT format) {
+        Map<String, Mail.WhitelistRecord> newExact = new HashMap<>(lines.size() * 2);
+        Map<String, Mail.WhitelistRecord> newDomains = new HashMap<>();
+        Map<String, Mail.WhitelistRecord> newSubdomains = new HashMap<>();
+        int newSkipped = 0;
+        for (String currLine: lines) {
+            String trimmed = currLine.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            Mail.WhitelistRecord newRecord;
+            if (format == Mail.WHITELIST_FORMAT.EXTENDED) {
+                try {
+                    newRecord = new Mail.WhitelistRecord(trimmed);
+                } catch (RuntimeException ex) {
+                    newSkipped++;
+                    continue;
+                }
+                if (newRecord.ADDRESS == null) {
+                    newSkipped++;
+                    continue;
+                }
+            } else {
+                newRecord = new Mail.WhitelistRecord();
+                newRecord.ADDRESS = trimmed;
+            }
+            String key = normalize(newRecord.ADDRESS);
+            if (key.startsWith("*@*.") || key.startsWith("*@.")) {
+                newSubdomains.put(key.substring(key.indexOf('.') + 1), newRecord);
+            } else if (key.startsWith("*@")) {
+                newDomains.put(key.substring(2), newRecord);
+            } else {
+                newExact.put(key, newRecord);
+            }
+        }
+        return new Whitelist(newExact, newDomains, newSubdomains, newSkipped);
+    }
+
+    /**
+     * Build whitelist with single address.
+     * @param address accepted address;
+     * @return new whitelist;
+     */
+    public static Whitelist single(String address) {
+        return parse(java.util.Collections.singletonList(address), Mail.WHITELIST_FORMAT.NORMAL);
+    }
+
+    /**
+     * Find whitelist record for address.
+     * @param address sender address;
+     * @return record or null if address isn't accepted;
+     */
+    public Mail.WhitelistRecord find(String address) {
+        if (address == null) {
+            return null;
+        }
+        String key = normalize(address);
+        Mail.WhitelistRecord found = exact.get(key);
+        if (found != null) {
+            return found;
+        }
+        int at = key.lastIndexOf('@');
+        if (at < 0) {
+            return null;
+        }
+        String domain = key.substring(at + 1);
+        found = domains.get(domain);
+        if (found != null || subdomains.isEmpty()) {
+            return found;
+        }
+        for (int dot = domain.indexOf('.'); dot >= 0; dot = domain.indexOf('.', dot + 1)) {
+            found = subdomains.get(domain.substring(dot + 1));
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get count of rules in whitelist.
+     * @return count of rules;
+     */
+    public int size() {
+        return exact.size() + domains.size() + subdomains.size();
+    }
+
+    /**
+     * Check if whitelist has no rules.
+     * @return true if whitelist is empty;
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get count of broken lines skipped during parse.
+     * @return count of skipped lines;
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Normalize address for lookup.
+     * @param address raw address;
+     * @return trimmed lower case address;
+     */
+    private static String normalize(String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
+}
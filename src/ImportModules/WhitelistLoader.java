@@ -0,0 +1,217 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Whitelist file loader with background reload.<br>
+ * Watches whitelist file directory and swaps whitelist snapshot
+ * atomically after each change of the file.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class WhitelistLoader {
+
+    /**
+     * Delay after file change before reload (editors write files in several steps).
+     */
+    private static final long SETTLE_DELAY = 500;
+
+    /**
+     * Whitelist file (may be null).
+     */
+    private final File whitelistFile;
+
+    /**
+     * Whitelist format.
+     */
+    private final Mail.WHITELIST_FORMAT format;
+
+    /**
+     * Address to accept if whitelist file is empty or can't be read (may be null).
+     */
+    private final String fallbackAddress;
+
+    /**
+     * Log id of import scheme.
+     */
+    private final String logId;
+
+    /**
+     * Current whitelist snapshot.
+     */
+    private volatile Whitelist current = Whitelist.EMPTY;
+
+    /**
+     * Watch service of whitelist directory (null if not watching).
+     */
+    private WatchService watcher;
+
+    /**
+     * Background reload thread (null if not watching).
+     */
+    private Thread watchThread;
+
+    /**
+     * Default constructor: loads whitelist first time.
+     * @param givenFile whitelist file (may be null);
+     * @param givenFormat whitelist format;
+     * @param givenFallback address to accept if file is empty or can't be read (may be null);
+     * @param givenLogId log id of import scheme;
+     */
+    public WhitelistLoader(File givenFile, Mail.WHITELIST_FORMAT givenFormat, String givenFallback, String givenLogId) {
+        whitelistFile = givenFile;
+        format = givenFormat;
+        fallbackAddress = givenFallback;
+        logId = givenLogId;
+        reload();
+    }
+
+    /**
+     * Get current whitelist snapshot.
+     * @return whitelist;
+     */
+    public Whitelist get() {
+        return current;
+    }
+
+    /**
+     * Read whitelist file and swap snapshot.<br>
+     * If file can't be read previous snapshot is kept.
+     */
+    public final void reload() {
+        Whitelist loaded = Whitelist.EMPTY;
+        if (whitelistFile != null) {
+            try {
+                loaded = Whitelist.parse(java.nio.file.Files.readAllLines(whitelistFile.toPath(), StandardCharsets.UTF_8), format);
+                IOControl.serverWrapper.log(logId, 3, "завантажено список з адресами: " + loaded.size()
+                        + (loaded.getSkipped() > 0 ? " (пропущено пошкоджених рядків: " + loaded.getSkipped() + ")" : ""));
+            } catch (IOException ex) {
+                if (!current.isEmpty()) {
+                    IOControl.serverWrapper.log(logId, 1, "неможливо перечитати список дозволених адрес, використовується попередній список");
+                    return;
+                }
+                IOControl.serverWrapper.log(logId, 1,
+                "неможливо прочитати список дозволених адрес для прийому - імпорт буде дозволено тільки для адреси з параметра 'mail_read_from'\n"
+                + "Шлях до файлу списку розсилки:" + whitelistFile.getPath());
+            }
+        }
+        if (loaded.isEmpty() && fallbackAddress != null) {
+            loaded = Whitelist.single(fallbackAddress);
+        }
+        current = loaded;
+    }
+
+    /**
+     * Start background thread which reloads whitelist after file change.
+     */
+    public synchronized void startWatching() {
+        if (whitelistFile == null || watchThread != null) {
+            return;
+        }
+        final Path directory = whitelistFile.getAbsoluteFile().getParentFile().toPath();
+        final Path fileName = whitelistFile.toPath().getFileName();
+        final WatchService newWatcher;
+        try {
+            newWatcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(logId, 1, "неможливо відстежувати зміни списку дозволених адрес");
+            return;
+        }
+        try {
+            directory.register(newWatcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            IOControl.serverWrapper.log(logId, 1, "неможливо відстежувати зміни списку дозволених адрес");
+            closeQuietly(newWatcher);
+            return;
+        }
+        watcher = newWatcher;
+        watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        WatchKey key = newWatcher.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> currEvent: key.pollEvents()) {
+                            if (fileName.equals(currEvent.context())) {
+                                changed = true;
+                            }
+                        }
+                        key.reset();
+                        if (changed) {
+                            Thread.sleep(SETTLE_DELAY);
+                            WatchKey settled = newWatcher.poll();
+                            if (settled != null) {
+                                settled.pollEvents();
+                                settled.reset();
+                            }
+                            reload();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ClosedWatchServiceException ex) {
+                    // Loader was closed.
+                } finally {
+                    closeQuietly(newWatcher);
+                }
+            }
+        }, logId + "-whitelist");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Stop background reload and release watch service.
+     */
+    public synchronized void close() {
+        if (watchThread != null) {
+            watchThread.interrupt();
+            watchThread = null;
+        }
+        if (watcher != null) {
+            closeQuietly(watcher);
+            watcher = null;
+        }
+    }
+
+    /**
+     * Close watch service quietly.
+     * @param service watch service to close;
+     */
+    private static void closeQuietly(WatchService service) {
+        try {
+            service.close();
+        } catch (IOException ex) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of duplicate cache.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class DedupeCacheTest {
+
+    /**
+     * Exact cache keeps every letter: nothing is taken for copy far past windowed capacity.
+     */
+    @Test
+    public void exactCacheHasNoFalseDuplicates() {
+        DedupeCache cache = DedupeCache.exact();
+        int count = 300000;
+        for (int index = 0; index < count; index++) {
+            String id = "<" + index + "@archive.example>";
+            String body = "Повідомлення номер " + index;
+            assertFalse("letter " + index + " taken for copy", cache.isDuplicate(id, "Тема " + index, body));
+            cache.remember(id, "Тема " + index, body);
+        }
+        assertEquals(0, cache.getDuplicates());
+    }
+
+    /**
+     * Exact cache finds copies by id and by normalized text.
+     */
+    @Test
+    public void exactCacheFindsCopies() {
+        DedupeCache cache = DedupeCache.exact();
+        cache.remember("<1@archive.example>", "Новина", "Текст   новини");
+        assertTrue(cache.isDuplicate("<1@ARCHIVE.example>", "Інша тема", "Інший текст"));
+        assertTrue(cache.isDuplicate("<2@archive.example>", "Fwd: Новина", "> текст новини"));
+        assertFalse(cache.isDuplicate("<3@archive.example>", "Новина", "Інший текст"));
+        assertEquals(2, cache.getDuplicates());
+    }
+
+    /**
+     * Letters without text get no content key.
+     */
+    @Test
+    public void emptyLettersAreNotCopies() {
+        DedupeCache cache = DedupeCache.exact();
+        cache.remember("<1@archive.example>", "Фото", MailReader.EMPTY_CONTENT);
+        assertFalse(cache.isDuplicate("<2@archive.example>", "Фото", MailReader.EMPTY_CONTENT));
+    }
+}
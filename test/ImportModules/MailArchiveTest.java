@@ -0,0 +1,212 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.mail.internet.MimeUtility;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of mail archive import.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailArchiveTest {
+
+    /**
+     * Sender address of archived letters.
+     */
+    private static final String SENDER = "press@agency.example";
+
+    /**
+     * Import directory of test.
+     */
+    @Rule
+    public TemporaryFolder importDir = new TemporaryFolder();
+
+    /**
+     * Stub server wrapper.
+     */
+    private RecordingWrapper wrapper;
+
+    /**
+     * Tested scheme.
+     */
+    private MailArchive scheme;
+
+    @Before
+    public void setUp() throws Exception {
+        wrapper = RecordingWrapper.install();
+        IOControl.IMPORT_DIR = importDir.getRoot().getPath();
+    }
+
+    @After
+    public void tearDown() {
+        if (scheme != null) {
+            scheme.shutdown();
+        }
+    }
+
+    /**
+     * Backfill of more letters than mailbox duplicate cache holds releases every letter.
+     * @throws IOException
+     */
+    @Test
+    public void backfillOverDedupeCapacityLosesNothing() throws IOException {
+        int count = 5000;
+        File mbox = importDir.newFile("archive.mbox");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mbox), StandardCharsets.UTF_8))) {
+            for (int index = 0; index < count; index++) {
+                writeLetter(writer, "<" + index + "@archive.example>", "Новина " + index, "Текст новини номер " + index);
+            }
+        }
+        scheme = new MailArchive(config(mbox, 100));
+        scheme.doImport();
+        assertEquals(count, wrapper.messages.size());
+    }
+
+    /**
+     * Copies of letter inside archive are released once.
+     * @throws IOException
+     */
+    @Test
+    public void backfillDropsCopies() throws IOException {
+        File mbox = importDir.newFile("archive.mbox");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mbox), StandardCharsets.UTF_8))) {
+            writeLetter(writer, "<1@archive.example>", "Новина", "Текст новини");
+            writeLetter(writer, "<1@archive.example>", "Новина", "Текст новини");
+            writeLetter(writer, "<2@archive.example>", "Fwd: Новина", "> Текст новини");
+            writeLetter(writer, "<3@archive.example>", "Інша новина", "Інший текст");
+        }
+        scheme = new MailArchive(config(mbox, 100000));
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+    }
+
+    /**
+     * Maildir files are taken in order of delivery time, so letter delivered
+     * after restart is released even if its name is lower as text.
+     * @throws IOException
+     */
+    @Test
+    public void maildirResumesByDeliveryTime() throws IOException {
+        File maildir = importDir.newFolder("Maildir");
+        File newDir = new File(maildir, "new");
+        newDir.mkdir();
+        writeFile(new File(newDir, "999999998.M1P10.host"), "<1@archive.example>", "Новина 1");
+        writeFile(new File(newDir, "999999999.M1P11.host"), "<2@archive.example>", "Новина 2");
+        scheme = new MailArchive(config(maildir, 100000));
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+        scheme.shutdown();
+
+        writeFile(new File(newDir, "1000000001.M1P12.host"), "<3@archive.example>", "Новина 3");
+        scheme = new MailArchive(config(maildir, 100000));
+        scheme.doImport();
+        assertEquals(3, wrapper.messages.size());
+        assertEquals("Новина 3", wrapper.messages.get(2).HEADER);
+    }
+
+    /**
+     * Maildir order ignores flags in info part of name.
+     */
+    @Test
+    public void maildirOrderIgnoresFlags() {
+        String[] names = {"1000000000.M2P1.host:2,S", "999999999.M1P1.host", "1000000000.M1P1.host:2,RS"};
+        Arrays.sort(names, MailArchive.MAILDIR_ORDER);
+        assertEquals(Arrays.asList("999999999.M1P1.host", "1000000000.M1P1.host:2,RS", "1000000000.M2P1.host:2,S"), Arrays.asList(names));
+        assertEquals(0, MailArchive.MAILDIR_ORDER.compare("1000000000.M1P1.host:2,", "1000000000.M1P1.host:2,S"));
+    }
+
+    /**
+     * Build config of archive scheme.
+     * @param mbox archive file or Maildir directory;
+     * @param capacity capacity of mailbox duplicate cache;
+     * @return scheme config;
+     */
+    private static Properties config(File mbox, int capacity) {
+        Properties config = new Properties();
+        config.setProperty("import_type", "MAILARCHIVE");
+        config.setProperty("import_name", "archive");
+        config.setProperty("import_print", "archive");
+        config.setProperty("mail_archive_path", mbox.getPath());
+        config.setProperty("mail_read_from", SENDER);
+        config.setProperty("mail_read_fallback_dir", "Система.Тест");
+        config.setProperty("mail_dedupe_capacity", String.valueOf(capacity));
+        return config;
+    }
+
+    /**
+     * Write single letter to Maildir file.
+     * @param file letter file;
+     * @param id Message-ID header;
+     * @param subject letter subject;
+     * @throws IOException
+     */
+    private static void writeFile(File file, String id, String subject) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeMessage(writer, id, subject, "Текст: " + subject);
+        }
+    }
+
+    /**
+     * Append letter to mbox.
+     * @param writer mbox writer;
+     * @param id Message-ID header;
+     * @param subject letter subject;
+     * @param text letter text;
+     * @throws IOException
+     */
+    private static void writeLetter(Writer writer, String id, String subject, String text) throws IOException {
+        writer.write("From " + SENDER + " Mon Jan  5 10:00:00 2015\n");
+        writeMessage(writer, id, subject, text);
+    }
+
+    /**
+     * Write letter headers and text.
+     * @param writer target writer;
+     * @param id Message-ID header;
+     * @param subject letter subject;
+     * @param text letter text;
+     * @throws IOException
+     */
+    private static void writeMessage(Writer writer, String id, String subject, String text) throws IOException {
+        writer.write("From: " + SENDER + "\n");
+        writer.write("Message-ID: " + id + "\n");
+        writer.write("Subject: " + MimeUtility.encodeText(subject, "UTF-8", "B") + "\n");
+        writer.write("MIME-Version: 1.0\n");
+        writer.write("Content-Type: text/plain; charset=UTF-8\n");
+        writer.write("Content-Transfer-Encoding: 8bit\n\n");
+        writer.write(text + "\n\n");
+    }
+}
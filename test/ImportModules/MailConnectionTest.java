@@ -0,0 +1,79 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import javax.mail.Folder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of mail store connection with embedded mail server.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailConnectionTest {
+
+    /**
+     * Embedded mail server.
+     */
+    private GreenMail server;
+
+    /**
+     * Tested connection.
+     */
+    private MailConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new GreenMail(new ServerSetup(0, "127.0.0.1", ServerSetup.PROTOCOL_IMAPS));
+        server.start();
+        server.setUser("import@localhost", "import", "secret");
+    }
+
+    @After
+    public void tearDown() {
+        if (connection != null) {
+            connection.closeStore();
+        }
+        server.stop();
+    }
+
+    /**
+     * Second connection resumes TLS session of the first one
+     * (current JVMs negotiate TLS 1.3 with embedded server).
+     * @throws Exception
+     */
+    @Test
+    public void countsResumedHandshake() throws Exception {
+        connection = new MailConnection("imaps", "127.0.0.1", server.getImaps().getPort(), "import", "secret", 
+                false, true, false, 60, false, null);
+        Folder folder = connection.openInbox();
+        connection.closeInbox(folder, false);
+        connection.closeStore();
+        folder = connection.openInbox();
+        connection.closeInbox(folder, false);
+        assertEquals(2, connection.getSockets());
+        assertEquals(1, connection.getFullHandshakes());
+        assertEquals(1, connection.getResumedHandshakes());
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of mailbox import over IMAP with embedded mail server.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailImapTest {
+
+    /**
+     * Import directory of test.
+     */
+    @Rule
+    public TemporaryFolder importDir = new TemporaryFolder();
+
+    /**
+     * Stub server wrapper.
+     */
+    private RecordingWrapper wrapper;
+
+    /**
+     * Embedded mail server.
+     */
+    private GreenMail server;
+
+    /**
+     * Mailbox of import account.
+     */
+    private GreenMailUser user;
+
+    /**
+     * Tested scheme.
+     */
+    private Mail scheme;
+
+    @Before
+    public void setUp() throws Exception {
+        wrapper = RecordingWrapper.install();
+        IOControl.IMPORT_DIR = importDir.getRoot().getPath();
+        server = new GreenMail(new ServerSetup(0, "127.0.0.1", ServerSetup.PROTOCOL_IMAP));
+        server.start();
+        user = server.setUser("import@localhost", "import", "secret");
+    }
+
+    @After
+    public void tearDown() {
+        if (scheme != null) {
+            scheme.shutdown();
+        }
+        server.stop();
+    }
+
+    /**
+     * Letters of both lanes are fetched and released in full; big ones
+     * pass through temporary file which is deleted after parse.
+     * @throws Exception
+     */
+    @Test
+    public void fetchesLettersOfBothLanes() throws Exception {
+        String bigText = MailTest.repeat("Довгий текст новини. ", 200);
+        user.deliver(MailTest.letter("<1@agency.example>", "Коротка новина", "Короткий текст"));
+        user.deliver(MailTest.letter("<2@agency.example>", "Велика новина", bigText));
+        int spooled = countSpoolFiles();
+        Properties config = config();
+        config.setProperty("mail_lane_threshold", "1");
+        scheme = new Mail(config);
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+        //Lanes release concurrently, so order between lanes isn't fixed
+        for (MessageClasses.Message currMessage: wrapper.messages) {
+            if ("Коротка новина".equals(currMessage.HEADER)) {
+                assertEquals("Короткий текст", currMessage.CONTENT.trim());
+            } else {
+                assertEquals(bigText.trim(), currMessage.CONTENT.trim());
+            }
+        }
+        assertEquals(spooled, countSpoolFiles());
+    }
+
+    /**
+     * Released letters are tracked by UID: next poll and restarted scheme
+     * release only new letters.
+     * @throws Exception
+     */
+    @Test
+    public void releasesOnlyNewLettersByUid() throws Exception {
+        user.deliver(MailTest.letter("<1@agency.example>", "Новина 1", "Текст 1"));
+        user.deliver(MailTest.letter("<2@agency.example>", "Новина 2", "Текст 2"));
+        scheme = new Mail(config());
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+
+        user.deliver(MailTest.letter("<3@agency.example>", "Новина 3", "Текст 3"));
+        scheme.doImport();
+        assertEquals(3, wrapper.messages.size());
+        assertEquals("Новина 3", wrapper.messages.get(2).HEADER);
+
+        scheme.shutdown();
+        scheme = new Mail(config());
+        scheme.doImport();
+        assertEquals(3, wrapper.messages.size());
+    }
+
+    /**
+     * Watcher in IDLE releases new letter without waiting for poll interval.
+     * @throws Exception
+     */
+    @Test
+    public void idleWakesOnNewLetter() throws Exception {
+        user.deliver(MailTest.letter("<1@agency.example>", "Новина 1", "Текст 1"));
+        Properties config = config();
+        config.setProperty("mail_imap_idle", "1");
+        config.setProperty("mail_imap_poll", "600");
+        scheme = new Mail(config);
+        scheme.doImport();
+        awaitMessages(1, 10000);
+        Thread.sleep(500);
+
+        user.deliver(MailTest.letter("<2@agency.example>", "Новина 2", "Текст 2"));
+        awaitMessages(2, 10000);
+        assertEquals("Новина 2", wrapper.messages.get(1).HEADER);
+    }
+
+    /**
+     * Server without IDLE is polled with interval.
+     * @throws Exception
+     */
+    @Test
+    public void pollsServerWithoutIdle() throws Exception {
+        try (CapabilityFilter filter = new CapabilityFilter(server.getImap().getPort(), "IDLE")) {
+            filter.start();
+            Properties config = config();
+            config.setProperty("mail_imap_port", String.valueOf(filter.getPort()));
+            config.setProperty("mail_imap_idle", "1");
+            config.setProperty("mail_imap_poll", "1");
+            scheme = new Mail(config);
+            scheme.doImport();
+            awaitLogged("сервер не підтримує IDLE", 10000);
+            user.deliver(MailTest.letter("<1@agency.example>", "Новина 1", "Текст 1"));
+            awaitMessages(1, 10000);
+        }
+    }
+
+    /**
+     * Wait until count of released messages is reached.
+     * @param count expected count of messages;
+     * @param timeout max wait time in milliseconds;
+     * @throws InterruptedException
+     */
+    private void awaitMessages(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (wrapper.messages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, wrapper.messages.size());
+    }
+
+    /**
+     * Wait until text appears in log.
+     * @param text expected text;
+     * @param timeout max wait time in milliseconds;
+     * @throws InterruptedException
+     */
+    private void awaitLogged(String text, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!wrapper.logged(text) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(wrapper.logged(text));
+    }
+
+    /**
+     * Build config of IMAP scheme for embedded server.
+     * @return scheme config;
+     */
+    Properties config() {
+        Properties config = new Properties();
+        config.setProperty("import_type", "MAIL");
+        config.setProperty("import_name", "imap");
+        config.setProperty("import_print", "imap");
+        config.setProperty("mail_protocol", "IMAP");
+        config.setProperty("mail_imap_address", "127.0.0.1");
+        config.setProperty("mail_imap_port", String.valueOf(server.getImap().getPort()));
+        config.setProperty("mail_imap_login", "import");
+        config.setProperty("mail_imap_pass", "secret");
+        config.setProperty("mail_imap_security", "NONE");
+        config.setProperty("mail_imap_idle", "0");
+        config.setProperty("mail_read_from", MailTest.SENDER);
+        config.setProperty("mail_read_fallback_dir", "Система.Тест");
+        config.setProperty("mail_poll_jitter", "0");
+        config.setProperty("mail_poll_backoff_max", "1");
+        return config;
+    }
+
+    /**
+     * Count temporary files of downloaded messages.
+     * @return count of files;
+     */
+    private static int countSpoolFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("mail") && name.endsWith(".eml");
+            }
+        });
+        return names == null ? 0 : names.length;
+    }
+
+    /**
+     * TCP proxy to IMAP server which hides capability from client.
+     */
+    private static class CapabilityFilter extends Thread implements AutoCloseable {
+
+        /**
+         * Port of IMAP server.
+         */
+        private final int serverPort;
+
+        /**
+         * Hidden capability.
+         */
+        private final String hidden;
+
+        /**
+         * Listening socket of proxy.
+         */
+        private final ServerSocket listener;
+
+        /**
+         * Default constructor.
+         * @param givenPort port of IMAP server;
+         * @param givenHidden hidden capability;
+         * @throws IOException if socket can't be opened;
+         */
+        CapabilityFilter(int givenPort, String givenHidden) throws IOException {
+            serverPort = givenPort;
+            hidden = givenHidden;
+            listener = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        /**
+         * Get port of proxy.
+         * @return listening port;
+         */
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = listener.accept();
+                    final Socket upstream = new Socket("127.0.0.1", serverPort);
+                    pump(client.getInputStream(), upstream.getOutputStream(), false, client, upstream);
+                    pump(upstream.getInputStream(), client.getOutputStream(), true, client, upstream);
+                }
+            } catch (IOException ex) {
+                // Proxy is closed.
+            }
+        }
+
+        /**
+         * Copy stream by lines in separate thread.
+         * @param input source stream;
+         * @param output target stream;
+         * @param filter remove hidden capability from lines;
+         * @param client client socket;
+         * @param upstream server socket;
+         */
+        private void pump(final InputStream input, final OutputStream output, final boolean filter, final Socket client, final Socket upstream) {
+            Thread pumpThread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ByteArrayOutputStream line = new ByteArrayOutputStream();
+                        int next;
+                        while ((next = input.read()) != -1) {
+                            line.write(next);
+                            if (next == '\n') {
+                                byte[] bytes = line.toByteArray();
+                                line.reset();
+                                if (filter) {
+                                    String text = new String(bytes, StandardCharsets.ISO_8859_1);
+                                    if (text.contains("CAPABILITY")) {
+                                        bytes = text.replace(" " + hidden, "").getBytes(StandardCharsets.ISO_8859_1);
+                                    }
+                                }
+                                output.write(bytes);
+                                output.flush();
+                            }
+                        }
+                    } catch (IOException ex) {
+                        // Connection is closed.
+                    } finally {
+                        try {
+                            client.close();
+                            upstream.close();
+                        } catch (IOException ex) {
+                            // Already closed.
+                        }
+                    }
+                }
+            };
+            pumpThread.setDaemon(true);
+            pumpThread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+}
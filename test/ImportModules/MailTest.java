@@ -0,0 +1,324 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of mailbox import over POP3 with embedded mail server.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class MailTest {
+
+    /**
+     * Sender address of letters.
+     */
+    static final String SENDER = "press@agency.example";
+
+    /**
+     * Import directory of test.
+     */
+    @Rule
+    public TemporaryFolder importDir = new TemporaryFolder();
+
+    /**
+     * Stub server wrapper.
+     */
+    private RecordingWrapper wrapper;
+
+    /**
+     * Embedded mail server.
+     */
+    private GreenMail server;
+
+    /**
+     * Mailbox of import account.
+     */
+    private GreenMailUser user;
+
+    /**
+     * Tested scheme.
+     */
+    private Mail scheme;
+
+    @Before
+    public void setUp() throws Exception {
+        wrapper = RecordingWrapper.install();
+        IOControl.IMPORT_DIR = importDir.getRoot().getPath();
+        server = new GreenMail(new ServerSetup(0, "127.0.0.1", ServerSetup.PROTOCOL_POP3));
+        server.start();
+        user = server.setUser("import@localhost", "import", "secret");
+    }
+
+    @After
+    public void tearDown() {
+        if (scheme != null) {
+            scheme.shutdown();
+        }
+        server.stop();
+    }
+
+    /**
+     * Letter over size ceiling is left in mailbox without download by default action.
+     * @throws Exception
+     */
+    @Test
+    public void oversizeLetterIsDeferredBeforeDownload() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Коротка новина", "Текст"));
+        user.deliver(letter("<2@agency.example>", "Велика новина", repeat("Довгий текст. ", 400)));
+        Properties config = config();
+        config.setProperty("mail_lane_max", "1");
+        scheme = new Mail(config);
+        scheme.doImport();
+        assertEquals(1, wrapper.messages.size());
+        assertEquals("Коротка новина", wrapper.messages.get(0).HEADER);
+        assertTrue(wrapper.logged("відкладено завеликого поштового листа"));
+        assertEquals(2, server.getReceivedMessages().length);
+
+        scheme.doImport();
+        assertEquals(1, wrapper.messages.size());
+    }
+
+    /**
+     * Rejected oversize letter is marked processed and not checked again.
+     * @throws Exception
+     */
+    @Test
+    public void oversizeLetterIsRejected() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Велика новина", repeat("Довгий текст. ", 400)));
+        Properties config = config();
+        config.setProperty("mail_lane_max", "1");
+        config.setProperty("mail_lane_oversize", "REJECT");
+        scheme = new Mail(config);
+        scheme.doImport();
+        wrapper.logs.clear();
+        scheme.doImport();
+        assertEquals(0, wrapper.messages.size());
+        assertTrue(!wrapper.logged("завеликого"));
+    }
+
+    /**
+     * Default size ceiling lets ordinary letters through.
+     * @throws Exception
+     */
+    @Test
+    public void defaultCeilingReleasesLetters() throws Exception {
+        for (int index = 0; index < 5; index++) {
+            user.deliver(letter("<" + index + "@agency.example>", "Новина " + index, repeat("Текст новини. ", 100)));
+        }
+        scheme = new Mail(config());
+        scheme.doImport();
+        assertEquals(5, wrapper.messages.size());
+    }
+
+    /**
+     * Crash after letter was added to the system but before release record 
+     * was written doesn't release letter second time after restart.
+     * @throws Exception
+     */
+    @Test
+    public void crashAfterPublishDoesNotRepeatLetter() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Новина", "Текст"));
+        Properties config = config();
+        config.setProperty("mail_post_action", "DELETE");
+        scheme = new CrashingMail(config, true);
+        scheme.doImport();
+        assertEquals(1, wrapper.messages.size());
+        scheme.shutdown();
+
+        scheme = new Mail(config);
+        scheme.doImport();
+        scheme.doImport();
+        assertEquals(1, wrapper.messages.size());
+        assertTrue(wrapper.logged("перервано збоєм"));
+        assertEquals(1, server.getReceivedMessages().length);
+    }
+
+    /**
+     * Crash after intent record but before letter was added to the system
+     * leaves letter in mailbox: it's neither deleted nor released twice.
+     * @throws Exception
+     */
+    @Test
+    public void crashBeforePublishKeepsLetter() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Новина", "Текст"));
+        user.deliver(letter("<2@agency.example>", "Друга новина", "Другий текст"));
+        Properties config = config();
+        config.setProperty("mail_post_action", "DELETE");
+        scheme = new CrashingMail(config, false);
+        scheme.doImport();
+        assertEquals(0, wrapper.messages.size());
+        scheme.shutdown();
+
+        scheme = new Mail(config);
+        scheme.doImport();
+        assertEquals(1, wrapper.messages.size());
+        assertEquals("Друга новина", wrapper.messages.get(0).HEADER);
+        assertTrue(wrapper.logged("перервано збоєм"));
+        assertEquals(1, server.getReceivedMessages().length);
+    }
+
+    /**
+     * Released letters are deleted from mailbox in DELETE mode.
+     * @throws Exception
+     */
+    @Test
+    public void releasedLettersAreDeleted() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Новина", "Текст"));
+        user.deliver(letter("<2@agency.example>", "Друга новина", "Другий текст"));
+        Properties config = config();
+        config.setProperty("mail_post_action", "DELETE");
+        scheme = new Mail(config);
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+        assertEquals(0, server.getReceivedMessages().length);
+        assertTrue(!wrapper.logged("перервано збоєм"));
+    }
+
+    /**
+     * Letter without route gets tags and language from config.
+     * @throws Exception
+     */
+    @Test
+    public void defaultTagsAndLanguageAreConfigured() throws Exception {
+        user.deliver(letter("<1@agency.example>", "Новина", "Текст"));
+        user.deliver(letter("<2@agency.example>", "Друга новина", "Другий текст"));
+        Properties config = config();
+        config.setProperty("mail_read_tags", "новини, агенція");
+        config.setProperty("mail_read_lang", "UKR");
+        scheme = new Mail(config);
+        scheme.doImport();
+        assertEquals(2, wrapper.messages.size());
+        assertEquals(Arrays.asList("новини", "агенція"), Arrays.asList(wrapper.messages.get(0).TAGS));
+        assertEquals("UKR", wrapper.messages.get(0).LANG);
+        wrapper.messages.get(0).TAGS[0] = "змінено";
+        assertEquals("новини", wrapper.messages.get(1).TAGS[0]);
+    }
+
+    /**
+     * Build config of POP3 scheme for embedded server.
+     * @return scheme config;
+     */
+    private Properties config() {
+        Properties config = new Properties();
+        config.setProperty("import_type", "MAIL");
+        config.setProperty("import_name", "mail");
+        config.setProperty("import_print", "mail");
+        config.setProperty("mail_pop3_address", "127.0.0.1");
+        config.setProperty("mail_pop3_port", String.valueOf(server.getPop3().getPort()));
+        config.setProperty("mail_pop3_login", "import");
+        config.setProperty("mail_pop3_pass", "secret");
+        config.setProperty("mail_pop3_security", "NONE");
+        config.setProperty("mail_read_from", SENDER);
+        config.setProperty("mail_read_fallback_dir", "Система.Тест");
+        config.setProperty("mail_poll_jitter", "0");
+        return config;
+    }
+
+    /**
+     * Build plain text letter from whitelisted sender.
+     * @param id Message-ID header;
+     * @param subject letter subject;
+     * @param text letter text;
+     * @return new letter;
+     * @throws Exception
+     */
+    static MimeMessage letter(String id, String subject, String text) throws Exception {
+        final String messageId = id;
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties())) {
+            @Override
+            protected void updateMessageID() throws javax.mail.MessagingException {
+                setHeader("Message-ID", messageId);
+            }
+        };
+        message.setFrom(new InternetAddress(SENDER));
+        message.setRecipient(javax.mail.Message.RecipientType.TO, new InternetAddress("import@localhost"));
+        message.setSubject(subject, "UTF-8");
+        message.setText(text, "UTF-8");
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Repeat text.
+     * @param text text to repeat;
+     * @param count count of copies;
+     * @return joined copies;
+     */
+    static String repeat(String text, int count) {
+        char[] filler = new char[count];
+        Arrays.fill(filler, '.');
+        return new String(filler).replace(".", text);
+    }
+
+    /**
+     * Scheme which fails on release of first letter, like process crash
+     * between journal and system calls.
+     */
+    private static class CrashingMail extends Mail {
+
+        /**
+         * Fail after letter was added to the system (otherwise before).
+         */
+        private final boolean afterPublish;
+
+        /**
+         * Letter was failed already.
+         */
+        private boolean crashed = false;
+
+        /**
+         * Default constructor.
+         * @param givenConfig scheme config;
+         * @param givenAfterPublish fail after letter was added to the system;
+         */
+        CrashingMail(Properties givenConfig, boolean givenAfterPublish) {
+            super(givenConfig);
+            afterPublish = givenAfterPublish;
+        }
+
+        @Override
+        protected boolean publishMail(javax.mail.Message source, MessageClasses.Message mailMessage) throws javax.mail.MessagingException {
+            if (crashed) {
+                throw new IllegalStateException("scheme is down");
+            }
+            crashed = true;
+            if (afterPublish) {
+                super.publishMail(source, mailMessage);
+            }
+            throw new IllegalStateException("crash");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import Utils.IOControl;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stub server wrapper for tests: released messages and log records are kept
+ * for assertions.<br>
+ * Wrapper interface is declared by libRibbonIO, so it's implemented
+ * with dynamic proxy by method names.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public final class RecordingWrapper {
+
+    /**
+     * Released messages in order of release.
+     */
+    public final List<MessageClasses.Message> messages = Collections.synchronizedList(new ArrayList<MessageClasses.Message>());
+
+    /**
+     * Log records and posted exceptions as text.
+     */
+    public final List<String> logs = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Errors and warnings (log level 0 and 1, posted exceptions and dirty state).
+     */
+    public final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Private constructor, use {@link #install()}.
+     */
+    private RecordingWrapper() {
+    }
+
+    /**
+     * Create recording wrapper and set it as server wrapper.
+     * @return new wrapper;
+     * @throws ReflectiveOperationException if wrapper field is not accessible;
+     */
+    public static RecordingWrapper install() throws ReflectiveOperationException {
+        final RecordingWrapper recorder = new RecordingWrapper();
+        java.lang.reflect.Field wrapperField = IOControl.class.getField("serverWrapper");
+        Class<?> wrapperType = wrapperField.getType();
+        Object wrapper = Proxy.newProxyInstance(RecordingWrapper.class.getClassLoader(), new Class<?>[] {wrapperType}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "addMessage":
+                        recorder.messages.add((MessageClasses.Message) args[2]);
+                        break;
+                    case "log":
+                        recorder.logs.add(args[0] + ": " + args[2]);
+                        if (((Number) args[1]).intValue() <= 1) {
+                            recorder.errors.add(args[0] + ": " + args[2]);
+                        }
+                        break;
+                    case "postException":
+                        recorder.logs.add(args[0] + ": " + args[1]);
+                        recorder.errors.add(args[0] + ": " + args[1]);
+                        break;
+                    case "enableDirtyState":
+                        recorder.errors.add("dirty state: " + java.util.Arrays.toString(args));
+                        break;
+                    default:
+                        break;
+                }
+                Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                } else if (returnType.isPrimitive() && returnType != void.class) {
+                    return 0;
+                }
+                return null;
+            }
+        });
+        wrapperField.set(null, wrapper);
+        return recorder;
+    }
+
+    /**
+     * Check if any log record contains text.
+     * @param text searched text;
+     * @return true if text was logged;
+     */
+    public boolean logged(String text) {
+        synchronized (logs) {
+            for (String currRecord: logs) {
+                if (currRecord.contains(text)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
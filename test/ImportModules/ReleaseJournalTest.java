@@ -0,0 +1,84 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of release journal.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ReleaseJournalTest {
+
+    /**
+     * Directory for journal file.
+     */
+    @Rule
+    public TemporaryFolder journalDir = new TemporaryFolder();
+
+    /**
+     * Records survive restart: released UID is known as released,
+     * UID with intent record only is unresolved.
+     * @throws Exception
+     */
+    @Test
+    public void recordsSurviveRestart() throws Exception {
+        File journalFile = new File(journalDir.getRoot(), "test.journal");
+        ReleaseJournal journal = new ReleaseJournal(journalFile);
+        journal.begin("1");
+        journal.add("1");
+        journal.begin("2");
+        journal.close();
+
+        journal = new ReleaseJournal(journalFile);
+        assertTrue(journal.contains("1"));
+        assertFalse(journal.isPending("1"));
+        assertFalse(journal.contains("2"));
+        assertTrue(journal.isPending("2"));
+        journal.close();
+    }
+
+    /**
+     * Clear after expunge drops release records and keeps unresolved ones.
+     * @throws Exception
+     */
+    @Test
+    public void clearKeepsUnresolvedRecords() throws Exception {
+        File journalFile = new File(journalDir.getRoot(), "test.journal");
+        ReleaseJournal journal = new ReleaseJournal(journalFile);
+        journal.begin("1");
+        journal.add("1");
+        journal.begin("2");
+        journal.clear();
+        journal.close();
+
+        journal = new ReleaseJournal(journalFile);
+        assertFalse(journal.contains("1"));
+        assertTrue(journal.isPending("2"));
+        journal.dropPending();
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+}
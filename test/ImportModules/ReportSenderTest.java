@@ -0,0 +1,149 @@
+/**
+ * This file is part of ImportMail library (check README).
+ * Copyright (C) 2012-2015 Stanislav Nepochatov
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+**/
+
+package ImportModules;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import java.util.Properties;
+import javax.mail.internet.InternetAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of report sender with embedded SMTP server.
+ * @author Stanislav Nepochatov <spoilt.exile@gmail.com>
+ */
+public class ReportSenderTest {
+
+    /**
+     * Directory for report spool.
+     */
+    @Rule
+    public TemporaryFolder spoolDir = new TemporaryFolder();
+
+    /**
+     * Stub server wrapper.
+     */
+    private RecordingWrapper wrapper;
+
+    /**
+     * Embedded SMTP server.
+     */
+    private GreenMail server;
+
+    /**
+     * Tested sender.
+     */
+    private ReportSender sender;
+
+    @Before
+    public void setUp() throws Exception {
+        wrapper = RecordingWrapper.install();
+        server = new GreenMail(new ServerSetup(0, "127.0.0.1", ServerSetup.PROTOCOL_SMTP));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Queued report is delivered and removed from spool.
+     * @throws Exception
+     */
+    @Test
+    public void deliversReport() throws Exception {
+        sender = new ReportSender(config(), "test", spoolDir.newFile("test.reports"), new ImportMetrics());
+        sender.queueReport(message("1", "Новина"), new InternetAddress("press@agency.example"));
+        assertTrue(server.waitForIncomingEmail(10000, 1));
+        awaitQueue(0, 10000);
+        assertEquals("press@agency.example", server.getReceivedMessages()[0].getAllRecipients()[0].toString());
+        assertEquals("СТРІЧКА: повідомлення №1 прийнято до системи", server.getReceivedMessages()[0].getSubject());
+    }
+
+    /**
+     * Runtime failure of report doesn't stop sender thread: report is retried
+     * until attempts are exhausted, next reports are still taken.
+     * @throws Exception
+     */
+    @Test
+    public void runtimeFailureIsRetried() throws Exception {
+        Properties config = config();
+        config.remove("mail_from");
+        config.setProperty("mail_smtp_retry_delay", "1");
+        config.setProperty("mail_smtp_retry_max", "2");
+        sender = new ReportSender(config, "test", spoolDir.newFile("test.reports"), new ImportMetrics());
+        sender.queueReport(message("1", "Новина"), new InternetAddress("press@agency.example"));
+        awaitQueue(0, 10000);
+        assertTrue(wrapper.logged("після 2 спроб"));
+
+        sender.queueReport(message("2", "Новина"), new InternetAddress("press@agency.example"));
+        awaitQueue(0, 10000);
+        assertEquals(0, server.getReceivedMessages().length);
+    }
+
+    /**
+     * Build sender config for embedded server.
+     * @return sender config;
+     */
+    private Properties config() {
+        Properties config = new Properties();
+        config.setProperty("mail_smtp_address", "127.0.0.1");
+        config.setProperty("mail_smtp_con_port", String.valueOf(server.getSmtp().getPort()));
+        config.setProperty("mail_from", "ribbon@localhost");
+        return config;
+    }
+
+    /**
+     * Build released message.
+     * @param index message index;
+     * @param header message header;
+     * @return new message;
+     */
+    private static MessageClasses.Message message(String index, String header) {
+        MessageClasses.Message message = new MessageClasses.Message();
+        message.INDEX = index;
+        message.HEADER = header;
+        return message;
+    }
+
+    /**
+     * Wait until spool has expected size.
+     * @param size expected count of reports;
+     * @param timeout max wait time in milliseconds;
+     * @throws InterruptedException
+     */
+    private void awaitQueue(int size, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (sender.getQueueSize() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(size, sender.getQueueSize());
+    }
+}